@@ -0,0 +1,91 @@
+/**
+ * GraphStore holding the graph in heap arrays, with a hash table from OSM ids to indices.
+ */
+public class ArrayGraphStore implements GraphStore {
+    private final long[] ids;
+    private final double[] lons;
+    private final double[] lats;
+    private final int[] offsets;
+    private final int[] targets;
+    private final LongIntMap index;
+
+    /**
+     * Takes over the given arrays without copying them and indexes the ids.
+     * @param offsets size() + 1 entries; the edges of vertex i are offsets[i]..offsets[i + 1].
+     */
+    public ArrayGraphStore(long[] ids, double[] lons, double[] lats, int[] offsets,
+                           int[] targets) {
+        this(ids, lons, lats, offsets, targets, indexOf(ids));
+    }
+
+    /**
+     * Takes over the given arrays and an index mapping each of the ids to its position.
+     */
+    public ArrayGraphStore(long[] ids, double[] lons, double[] lats, int[] offsets,
+                           int[] targets, LongIntMap index) {
+        this.ids = ids;
+        this.lons = lons;
+        this.lats = lats;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.index = index;
+    }
+
+    private static LongIntMap indexOf(long[] ids) {
+        LongIntMap index = new LongIntMap(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            index.put(ids[i], i);
+        }
+        return index;
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    @Override
+    public long id(int i) {
+        return ids[i];
+    }
+
+    @Override
+    public double lon(int i) {
+        return lons[i];
+    }
+
+    @Override
+    public double lat(int i) {
+        return lats[i];
+    }
+
+    @Override
+    public int edgeStart(int i) {
+        return offsets[i];
+    }
+
+    @Override
+    public int edgeEnd(int i) {
+        return offsets[i + 1];
+    }
+
+    @Override
+    public int edgeTarget(int e) {
+        return targets[e];
+    }
+
+    @Override
+    public int indexOf(long id) {
+        return index.get(id);
+    }
+
+    @Override
+    public long memoryBytes() {
+        return ids.length * (8L + 8L + 8L + 4L) + targets.length * 4L + index.memoryBytes();
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another stream on a thread of its own, staying a few chunks ahead of the reader of
+ * this stream. Used to decompress a map while it is being parsed, see OsmInput. Chunks are
+ * handed over through a small bounded queue and recycled once read, so the source thread
+ * allocates no more buffers than fit in the queue.
+ */
+class BackgroundInputStream extends InputStream {
+    private static final int CHUNK_SIZE = 1 << 16;
+    /** Chunks the source may run ahead of the reader. */
+    private static final int QUEUE_CAPACITY = 4;
+
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 2);
+    private final Thread thread;
+    private Chunk current;
+    private int pos;
+    private boolean closed;
+
+    /** A run of bytes of the source, its end, or the error reading it. */
+    private static class Chunk {
+        final byte[] data;
+        final int length; // -1 at the end of the source
+        final IOException error;
+
+        Chunk(byte[] data, int length, IOException error) {
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Starts reading source on a daemon thread named name. The source is closed by that
+     * thread once it is exhausted, fails, or this stream is closed.
+     */
+    BackgroundInputStream(InputStream source, String name) {
+        thread = new Thread(() -> produce(source), name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void produce(InputStream source) {
+        try (InputStream in = source) {
+            while (true) {
+                byte[] data = free.poll();
+                if (data == null) {
+                    data = new byte[CHUNK_SIZE];
+                }
+                int n = 0;
+                int read = 0;
+                while (n < data.length && (read = in.read(data, n, data.length - n)) >= 0) {
+                    n += read;
+                }
+                if (n > 0) {
+                    filled.put(new Chunk(data, n, null));
+                }
+                if (read < 0) {
+                    filled.put(new Chunk(null, -1, null));
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            putQuietly(new Chunk(null, -1, e));
+        } catch (RuntimeException e) {
+            putQuietly(new Chunk(null, -1, new IOException("reading input failed", e)));
+        } catch (InterruptedException e) {
+            // the reader closed this stream
+        }
+    }
+
+    private void putQuietly(Chunk chunk) {
+        try {
+            filled.put(chunk);
+        } catch (InterruptedException e) {
+            // the reader closed this stream
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next()) {
+            return -1;
+        }
+        return current.data[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!next()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current.data, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    // makes current a chunk with unread bytes, returning false at the end of the source
+    private boolean next() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (current != null) {
+            if (current.error != null) {
+                throw current.error;
+            }
+            if (current.length < 0) {
+                return false;
+            }
+            if (pos < current.length) {
+                return true;
+            }
+            free.offer(current.data);
+        }
+        try {
+            current = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for input");
+        }
+        pos = 0;
+        if (current.error != null) {
+            throw current.error;
+        }
+        return current.length >= 0;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null || current.length < 0 ? 0 : current.length - pos;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            // stops the source thread if it is blocked on a full queue
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache holding values up to a total weight, evicting the least recently used ones to make
+ * room. Weights are given by a weigher, e.g. the bytes of a decoded image, and a value heavier
+ * than the whole budget is returned but not kept. Counts hits, misses and evictions.
+ *
+ * All methods are thread safe. Loading happens outside the lock, so a slow load does not
+ * hold up lookups of other keys; two threads missing the same key at once both load it and
+ * the second result wins.
+ */
+public class BoundedCache<K, V> {
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxWeight The total weight of values kept at most.
+     * @param weigher Returns the weight of a value, which must not change while it is cached.
+     */
+    public BoundedCache(long maxWeight, ToLongFunction<? super V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Returns the value cached for key, loading and caching it with loader if it is absent.
+     * Null values are returned but not cached, so failed loads are retried next time.
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        synchronized (this) {
+            V value = entries.get(key);
+            if (value != null) {
+                hits++;
+                return value;
+            }
+            misses++;
+        }
+        V value = loader.apply(key);
+        if (value != null) {
+            put(key, value);
+        }
+        return value;
+    }
+
+    /** Caches value under key, evicting older values as needed to stay within the budget. */
+    public synchronized void put(K key, V value) {
+        long w = weigher.applyAsLong(value);
+        V old = entries.remove(key);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+        if (w > maxWeight) {
+            return;
+        }
+        Iterator<V> eldest = entries.values().iterator();
+        while (weight + w > maxWeight) {
+            weight -= weigher.applyAsLong(eldest.next());
+            eldest.remove();
+            evictions++;
+        }
+        entries.put(key, value);
+        weight += w;
+    }
+
+    /** Removes the values of every key matching filter. */
+    public synchronized void removeIf(Predicate<? super K> filter) {
+        Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, V> e = it.next();
+            if (filter.test(e.getKey())) {
+                weight -= weigher.applyAsLong(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /** Removes every value, keeping the counts. */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /** Returns the share of lookups so far that were hits, or 0 before the first lookup. */
+    public synchronized double hitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Returns the number of values, their weight, the budget, and the hit, miss and eviction
+     * counts so far, under those names.
+     */
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("entries", (long) entries.size());
+        stats.put("weight", weight);
+        stats.put("max_weight", maxWeight);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+}
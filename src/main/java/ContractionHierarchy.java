@@ -0,0 +1,466 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contraction Hierarchies over a GraphDB's road graph.
+ * Preprocessing contracts the vertices one at a time, cheapest first, adding a shortcut edge
+ * between two neighbors of the contracted vertex whenever the path through it is the only
+ * shortest one. Each vertex keeps the edges to the neighbors it still had when it was
+ * contracted; those all lead to higher-ranked vertices, so a query is a bidirectional
+ * Dijkstra that only climbs upward from both endpoints and meets at the highest vertex of
+ * the shortest path. Shortcuts remember the vertex they bypass so paths can be unpacked back
+ * into original road vertices.
+ * All roads are two-way, so one upward graph serves both search directions.
+ * The preprocessing takes seconds to minutes on a city map, so the result is saved with
+ * save() and read back with load() on later starts.
+ */
+public class ContractionHierarchy {
+    /** Maximum vertices a witness search may settle before giving up and adding a shortcut. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    private static final int NO_MIDDLE = -1;
+    private static final int FILE_MAGIC = 0x43484931; // "CHI1"
+
+    private final GraphDB graph;
+    private final int[] rank;
+    /* Upward edges in compressed sparse row form: the edges of vertex v are
+     * upTargets[upOffsets[v]] .. upTargets[upOffsets[v + 1] - 1]. */
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final double[] upWeights;
+    private final int[] upMiddles;
+    private final int shortcutCount;
+
+    /**
+     * Runs the preprocessing over g. This is slow compared to a single query and is meant to
+     * be done once per graph.
+     */
+    public ContractionHierarchy(GraphDB g) {
+        graph = g;
+        int n = g.size();
+        Contraction c = new Contraction(g);
+        c.run();
+
+        rank = c.rank;
+        shortcutCount = c.shortcuts;
+        upOffsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            upOffsets[v + 1] = upOffsets[v] + c.upDegree[v];
+        }
+        upTargets = new int[upOffsets[n]];
+        upWeights = new double[upOffsets[n]];
+        upMiddles = new int[upOffsets[n]];
+        for (int v = 0; v < n; v++) {
+            System.arraycopy(c.upTargets[v], 0, upTargets, upOffsets[v], c.upDegree[v]);
+            System.arraycopy(c.upWeights[v], 0, upWeights, upOffsets[v], c.upDegree[v]);
+            System.arraycopy(c.upMiddles[v], 0, upMiddles, upOffsets[v], c.upDegree[v]);
+        }
+    }
+
+    private ContractionHierarchy(GraphDB g, int[] rank, int[] upOffsets, int[] upTargets,
+                                 double[] upWeights, int[] upMiddles, int shortcutCount) {
+        graph = g;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddles = upMiddles;
+        this.shortcutCount = shortcutCount;
+    }
+
+    /**
+     * Writes the hierarchy to file, tagged with the fingerprint of its graph so stale files
+     * are detected.
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeLong(graph.fingerprint());
+            out.writeInt(graph.size());
+            out.writeInt(upTargets.length);
+            out.writeInt(shortcutCount);
+            for (int r : rank) {
+                out.writeInt(r);
+            }
+            for (int offset : upOffsets) {
+                out.writeInt(offset);
+            }
+            for (int e = 0; e < upTargets.length; e++) {
+                out.writeInt(upTargets[e]);
+                out.writeDouble(upWeights[e]);
+                out.writeInt(upMiddles[e]);
+            }
+        }
+    }
+
+    /**
+     * Reads a hierarchy written by save().
+     * @return The hierarchy, or null if file was written for a different graph.
+     */
+    public static ContractionHierarchy load(File file, GraphDB g) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readLong() != g.fingerprint()
+                    || in.readInt() != g.size()) {
+                return null;
+            }
+            int n = g.size();
+            int edges = in.readInt();
+            int shortcutCount = in.readInt();
+            int[] rank = new int[n];
+            for (int v = 0; v < n; v++) {
+                rank[v] = in.readInt();
+            }
+            int[] upOffsets = new int[n + 1];
+            for (int v = 0; v <= n; v++) {
+                upOffsets[v] = in.readInt();
+            }
+            int[] upTargets = new int[edges];
+            double[] upWeights = new double[edges];
+            int[] upMiddles = new int[edges];
+            for (int e = 0; e < edges; e++) {
+                upTargets[e] = in.readInt();
+                upWeights[e] = in.readDouble();
+                upMiddles[e] = in.readInt();
+            }
+            return new ContractionHierarchy(g, rank, upOffsets, upTargets, upWeights,
+                    upMiddles, shortcutCount);
+        }
+    }
+
+    public GraphDB graph() {
+        return graph;
+    }
+
+    /** Number of shortcut edges added by preprocessing. */
+    public int shortcutCount() {
+        return shortcutCount;
+    }
+
+    /**
+     * Finds a shortest path between the vertices with indices s and t.
+     * @param forward Search space for the search upward from s.
+     * @param backward Search space for the search upward from t.
+     * @return The vertex indices of the path from s to t, or null if t is unreachable.
+     */
+    int[] shortestPath(int s, int t, SearchSpace forward, SearchSpace backward) {
+        forward.begin();
+        backward.begin();
+        forward.reach(s, 0, -1);
+        forward.fringe.insertOrDecrease(s, 0);
+        backward.reach(t, 0, -1);
+        backward.fringe.insertOrDecrease(t, 0);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        boolean forwardTurn = true;
+        while (true) {
+            boolean forwardOpen = !forward.fringe.isEmpty() && forward.fringe.minKey() < best;
+            boolean backwardOpen = !backward.fringe.isEmpty() && backward.fringe.minKey() < best;
+            if (!forwardOpen && !backwardOpen) {
+                break;
+            }
+            boolean useForward = forwardOpen && (forwardTurn || !backwardOpen);
+            forwardTurn = !forwardTurn;
+            SearchSpace space = useForward ? forward : backward;
+            SearchSpace other = useForward ? backward : forward;
+
+            int v = space.fringe.pollMin();
+            space.settle(v);
+            double dv = space.distance(v);
+            if (other.isReached(v) && dv + other.distance(v) < best) {
+                best = dv + other.distance(v);
+                meeting = v;
+            }
+            if (stalled(v, dv, space)) {
+                continue;
+            }
+            for (int e = upOffsets[v]; e < upOffsets[v + 1]; e++) {
+                int w = upTargets[e];
+                double d = dv + upWeights[e];
+                if (d < space.distance(w)) {
+                    space.reach(w, d, v);
+                    space.fringe.insertOrDecrease(w, d);
+                }
+            }
+        }
+        if (meeting == -1) {
+            return null;
+        }
+
+        // the hierarchy path is s .. meeting .. t; expand each of its edges into road vertices
+        List<Integer> upward = new ArrayList<>();
+        for (int v = meeting; v != -1; v = forward.parent(v)) {
+            upward.add(v);
+        }
+        Collections.reverse(upward);
+        for (int v = backward.parent(meeting); v != -1; v = backward.parent(v)) {
+            upward.add(v);
+        }
+
+        int[] path = new int[16];
+        int length = 0;
+        path[length++] = s;
+        int[] stack = new int[16];
+        for (int i = 0; i + 1 < upward.size(); i++) {
+            // depth-first expansion of the edge (a, b), emitting vertices after a in order
+            int top = 0;
+            stack[top++] = upward.get(i + 1);
+            stack[top++] = upward.get(i);
+            while (top > 0) {
+                int a = stack[--top];
+                int b = stack[--top];
+                int middle = upMiddles[edgeBetween(a, b)];
+                if (middle == NO_MIDDLE) {
+                    if (length == path.length) {
+                        path = Arrays.copyOf(path, length * 2);
+                    }
+                    path[length++] = b;
+                } else {
+                    if (top + 4 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top++] = b;
+                    stack[top++] = middle;
+                    stack[top++] = middle;
+                    stack[top++] = a;
+                }
+            }
+        }
+        return Arrays.copyOf(path, length);
+    }
+
+    /**
+     * Stall-on-demand: v was reached by climbing, but if some higher neighbor already has a
+     * shorter path down to v, v is not on a shortest path from this side and need not be
+     * expanded. Roads are two-way, so those downward edges are v's own upward edges.
+     */
+    private boolean stalled(int v, double dv, SearchSpace space) {
+        for (int e = upOffsets[v]; e < upOffsets[v + 1]; e++) {
+            if (space.distance(upTargets[e]) + upWeights[e] < dv) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns the upward edge joining a and b, stored with whichever was contracted first
+    private int edgeBetween(int a, int b) {
+        int low = rank[a] < rank[b] ? a : b;
+        int high = low == a ? b : a;
+        for (int e = upOffsets[low]; e < upOffsets[low + 1]; e++) {
+            if (upTargets[e] == high) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("no hierarchy edge between " + a + " and " + b);
+    }
+
+    /**
+     * Mutable state of the preprocessing: the remaining graph as per-vertex edge lists,
+     * a lazily updated priority queue of vertices by contraction cost, and the upward edges
+     * recorded so far.
+     */
+    private static class Contraction {
+        final int n;
+        final int[] rank;
+        final int[][] targets;
+        final double[][] weights;
+        final int[][] middles;
+        final int[] degree;
+        final int[] contractedNeighbors;
+        final int[] level;
+
+        final int[][] upTargets;
+        final double[][] upWeights;
+        final int[][] upMiddles;
+        final int[] upDegree;
+        int shortcuts;
+
+        final SearchSpace witness;
+
+        Contraction(GraphDB g) {
+            n = g.size();
+            rank = new int[n];
+            targets = new int[n][];
+            weights = new double[n][];
+            middles = new int[n][];
+            degree = new int[n];
+            contractedNeighbors = new int[n];
+            level = new int[n];
+            upTargets = new int[n][];
+            upWeights = new double[n][];
+            upMiddles = new int[n][];
+            upDegree = new int[n];
+            witness = new SearchSpace(n);
+
+            for (int v = 0; v < n; v++) {
+                int count = g.edgeEnd(v) - g.edgeStart(v);
+                targets[v] = new int[Math.max(2, count)];
+                weights[v] = new double[targets[v].length];
+                middles[v] = new int[targets[v].length];
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    int w = g.edgeTarget(e);
+                    if (w != v) {
+                        addEdge(v, w, g.distanceAt(v, w), NO_MIDDLE);
+                    }
+                }
+            }
+        }
+
+        void run() {
+            IndexedMinHeap queue = new IndexedMinHeap(n);
+            for (int v = 0; v < n; v++) {
+                queue.insertOrDecrease(v, priority(v));
+            }
+            int next = 0;
+            while (!queue.isEmpty()) {
+                int v = queue.pollMin();
+                // priorities go stale as neighbors are contracted; re-check before committing
+                double current = priority(v);
+                if (!queue.isEmpty() && current > queue.minKey()) {
+                    queue.insertOrDecrease(v, current);
+                    continue;
+                }
+                contract(v);
+                rank[v] = next++;
+            }
+        }
+
+        // edge difference plus the number of contracted neighbors and the depth in the hierarchy
+        private double priority(int v) {
+            return 2 * (findShortcuts(v, false) - degree[v]) + contractedNeighbors[v] + level[v];
+        }
+
+        private void contract(int v) {
+            findShortcuts(v, true);
+
+            // the edges v still has all lead to vertices that will be ranked above it
+            upTargets[v] = Arrays.copyOf(targets[v], degree[v]);
+            upWeights[v] = Arrays.copyOf(weights[v], degree[v]);
+            upMiddles[v] = Arrays.copyOf(middles[v], degree[v]);
+            upDegree[v] = degree[v];
+
+            for (int i = 0; i < degree[v]; i++) {
+                int u = targets[v][i];
+                removeEdge(u, v);
+                contractedNeighbors[u] += 1;
+                level[u] = Math.max(level[u], level[v] + 1);
+            }
+            targets[v] = null;
+            weights[v] = null;
+            middles[v] = null;
+        }
+
+        /**
+         * Counts the shortcuts contracting v needs, adding them to the graph if add is true.
+         * A shortcut u-w is needed unless a witness search from u finds a path to w that
+         * avoids v and is no longer than the path through v.
+         */
+        private int findShortcuts(int v, boolean add) {
+            int count = 0;
+            int d = degree[v];
+            int[] neighbors = Arrays.copyOf(targets[v], d);
+            double[] toV = Arrays.copyOf(weights[v], d);
+            for (int i = 0; i < d; i++) {
+                double limit = 0;
+                for (int j = i + 1; j < d; j++) {
+                    limit = Math.max(limit, toV[i] + toV[j]);
+                }
+                if (limit == 0) {
+                    continue;
+                }
+                witnessSearch(neighbors[i], v, limit);
+                for (int j = i + 1; j < d; j++) {
+                    double via = toV[i] + toV[j];
+                    if (witness.distance(neighbors[j]) > via) {
+                        count += 1;
+                        if (add) {
+                            addShortcut(neighbors[i], neighbors[j], via, v);
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        // bounded Dijkstra from source in the remaining graph, never passing through avoid
+        private void witnessSearch(int source, int avoid, double limit) {
+            witness.begin();
+            witness.settle(avoid);
+            witness.reach(source, 0, -1);
+            witness.fringe.insertOrDecrease(source, 0);
+            int settled = 0;
+            while (!witness.fringe.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+                int u = witness.fringe.pollMin();
+                double du = witness.distance(u);
+                if (du > limit) {
+                    break;
+                }
+                witness.settle(u);
+                settled += 1;
+                for (int i = 0; i < degree[u]; i++) {
+                    int w = targets[u][i];
+                    double dw = du + weights[u][i];
+                    if (!witness.isSettled(w) && dw < witness.distance(w)) {
+                        witness.reach(w, dw, u);
+                        witness.fringe.insertOrDecrease(w, dw);
+                    }
+                }
+            }
+        }
+
+        private void addShortcut(int u, int w, double weight, int middle) {
+            if (addEdge(u, w, weight, middle)) {
+                shortcuts += 1;
+            }
+            addEdge(w, u, weight, middle);
+        }
+
+        // adds the edge u-w to u's list, or shortens an existing one; true if it was new
+        private boolean addEdge(int u, int w, double weight, int middle) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (targets[u][i] == w) {
+                    if (weight < weights[u][i]) {
+                        weights[u][i] = weight;
+                        middles[u][i] = middle;
+                    }
+                    return false;
+                }
+            }
+            if (degree[u] == targets[u].length) {
+                targets[u] = Arrays.copyOf(targets[u], degree[u] * 2);
+                weights[u] = Arrays.copyOf(weights[u], degree[u] * 2);
+                middles[u] = Arrays.copyOf(middles[u], degree[u] * 2);
+            }
+            targets[u][degree[u]] = w;
+            weights[u][degree[u]] = weight;
+            middles[u][degree[u]] = middle;
+            degree[u] += 1;
+            return true;
+        }
+
+        private void removeEdge(int u, int w) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (targets[u][i] == w) {
+                    int last = degree[u] - 1;
+                    targets[u][i] = targets[u][last];
+                    weights[u][i] = weights[u][last];
+                    middles[u][i] = middles[u][last];
+                    degree[u] = last;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -3,15 +3,13 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Stack;
 
 /**
- *  Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
- *  pathfinding, under some constraints.
+ *  Parses OSM XML files using an XML SAX parser, reporting the nodes and ways to an OsmSink,
+ *  by default an OsmGraphBuilder that constructs the graph of roads for pathfinding.
+ *  OsmXmlScanner reads the same files several times faster; this handler is kept as the
+ *  reference it is checked against.
  *  See OSM documentation on
- *  <a href="http://wiki.openstreetmap.org/wiki/Key:highway">the highway tag</a>,
  *  <a href="http://wiki.openstreetmap.org/wiki/Way">the way XML element</a>,
  *  <a href="http://wiki.openstreetmap.org/wiki/Node">the node XML element</a>,
  *  and the java
@@ -24,29 +22,34 @@ import java.util.Stack;
  *  @author Alan Yao, Maurice Lee, Samuel Khong
  */
 public class GraphBuildingHandler extends DefaultHandler {
-    /**
-     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
-     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
-     * roads, but in practice we walk all over them with such impunity that we forget cars can
-     * actually drive on them.
-     */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
-            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
-                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
-                    "secondary_link", "tertiary_link"));
-    private String activeState = "";
-    private final GraphDB g;
-
-    private boolean isValidWay = false;
-    private long lastNode;
-    private Stack<Long> edgeList;
+    private final OsmSink sink;
+
+    /* The element being read: a node, a way, or neither (e.g. a relation). */
+    private boolean inNode = false;
+    private boolean inWay = false;
+    private long nodeId;
+    private double nodeLon;
+    private double nodeLat;
+    private long wayId;
+    private long[] refs = new long[16];
+    private int refCount;
+    private String highway;
+    private String name;
 
     /**
      * Create a new GraphBuildingHandler.
      * @param g The graph to populate with the XML data.
      */
     public GraphBuildingHandler(GraphDB g) {
-        this.g = g;
+        this(new OsmGraphBuilder(g));
+    }
+
+    /**
+     * Create a new GraphBuildingHandler.
+     * @param sink Receives the nodes and ways of the XML data.
+     */
+    public GraphBuildingHandler(OsmSink sink) {
+        this.sink = sink;
     }
 
     /**
@@ -67,65 +70,30 @@ public class GraphBuildingHandler extends DefaultHandler {
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
         if (qName.equals("node")) {
-            activeState = "node";
-            Long id = Long.parseLong(attributes.getValue("id"));
-            double lon = Double.parseDouble(attributes.getValue("lon"));
-            double lat = Double.parseDouble(attributes.getValue("lat"));
-
-            GraphDB.Node n = new GraphDB.Node(id, lon, lat);
-            lastNode = id; // make a local copy of last node, to be used to find most recent node in order to add more node fields later
-            g.addNode(n);
-
+            inNode = true;
+            nodeId = Long.parseLong(attributes.getValue("id"));
+            nodeLon = Double.parseDouble(attributes.getValue("lon"));
+            nodeLat = Double.parseDouble(attributes.getValue("lat"));
+            name = null;
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
-            activeState = "way";
-            edgeList = new Stack<>();
-//            System.out.println("Beginning a way...");
-        } else if (activeState.equals("way") && qName.equals("nd")) {
-            long edge = Long.parseLong(attributes.getValue("ref"));
-            edgeList.add(edge);
-
-
-        } else if (activeState.equals("way") && qName.equals("tag")) {
-            /* While looking at a way, we found a <tag...> tag. */
-            String k = attributes.getValue("k");
-            String v = attributes.getValue("v");
-            if (k.equals("maxspeed")) {
-                //System.out.println("Max Speed: " + v);
-            } else if (k.equals("highway")) {
-//                System.out.println("Highway type: " + v);
-                if(ALLOWED_HIGHWAY_TYPES.contains(v)) {
-                    isValidWay = true;
-
-                }
-            } else if (k.equals("name")) {
-                //System.out.println("Way Name: " + v);
-                // make a copy of edgelist
-                Stack<Long> tempStack = new Stack<>();
-                tempStack.addAll(edgeList);
-
-                // iterate through every node in stack and add name of street into the node name
-                while (!tempStack.empty()) {
-                    long tempID = tempStack.pop();
-                    g.insertRoad(tempID, v);
-                }
+            inWay = true;
+            wayId = Long.parseLong(attributes.getValue("id"));
+            refCount = 0;
+            highway = null;
+            name = null;
+        } else if (inWay && qName.equals("nd")) {
+            if (refCount == refs.length) {
+                refs = Arrays.copyOf(refs, refs.length * 2);
             }
-
-        }
-        else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
-                .equals("name")) {
-            /* While looking at a node, we found a <tag...> with k="name". */
-            // store the name and clean the string.
-            String location = attributes.getValue("v");
-            if (location != null) {
-                location = GraphDB.cleanString(location);
+            refs[refCount++] = Long.parseLong(attributes.getValue("ref"));
+        } else if ((inNode || inWay) && qName.equals("tag")) {
+            String k = attributes.getValue("k");
+            if (k.equals("name")) {
+                name = attributes.getValue("v");
+            } else if (inWay && k.equals("highway")) {
+                highway = attributes.getValue("v");
             }
-
-            // store name as string and update latest node with the name field
-            g.insertLocation(lastNode, location);
-            g.addLocationMapNode(lastNode);
-            g.addWordToTrie(location);
-
         }
     }
 
@@ -142,23 +110,12 @@ public class GraphBuildingHandler extends DefaultHandler {
      */
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
-        if (qName.equals("way")) {
-            // if the way is of the allowed highway types
-            if (isValidWay == true) {
-
-                long current = 0;
-                long next = 0;
-
-                while (edgeList.size() > 1) {
-                    current = edgeList.pop();
-                    next = edgeList.peek();
-                    g.addEdge(current, next);
-                    g.addEdge(next, current);
-                }
-
-                isValidWay = false; // reset allowed edge flag
-
-            }
+        if (qName.equals("node")) {
+            inNode = false;
+            sink.node(nodeId, nodeLon, nodeLat, name);
+        } else if (qName.equals("way")) {
+            inWay = false;
+            sink.way(wayId, refs, refCount, highway, name);
         }
     }
 }
@@ -1,16 +1,13 @@
-import org.xml.sax.SAXException;
-
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.nio.IntBuffer;
+import java.text.Normalizer;
 import java.util.*;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
- * Uses your GraphBuildingHandler to convert the XML files into a graph. 
+ * Uses OsmInput and OsmGraphBuilder to convert OSM XML or PBF files, possibly compressed, into
+ * a graph.
  *
  * @author Alan Yao, Josh Hug, Samuel Khong
  */
@@ -18,45 +15,509 @@ import java.util.*;
 public class GraphDB {
     /** Your instance variables for storing the graph. You should consider
      * creating helper classes, e.g. Node, Edge, etc. */
-    private final Map<Long, Node> nodes = new LinkedHashMap<>(); // stores road nodes
+    /* Parse-time state, released by freeze(): every parsed node in file order with its road
+     * names, and the (from, to) id pairs of all edges. */
+    private LongIntMap parsedIndex = new LongIntMap(1024); // OSM id to parse order
+    private long[] parsedIds = new long[1024];
+    private double[] parsedLons = new double[1024];
+    private double[] parsedLats = new double[1024];
+    private Set<String>[] parsedRoads = newRoadArray(1024);
+    private int parsedCount;
+    private long[] edgeBuffer = new long[1024];
+    private int edgeCount;
     public final Map<Long, Node> locationNodes = new HashMap<>(); // stores location nodes
     private Map<String, List<Long>> locationMap = new HashMap<>(); // stores name to location ids
 
     private  Trie locationTrie = new Trie();
+    private NameIndex nameIndex = new NameIndex(Collections.emptyMap()); // by words
+    /* Every named location, i.e. each pair of a name and one of its ids in locationMap, in
+     * parallel arrays, with the normalized name and a spatial index over them. */
+    private long[] namedIds = new long[0];
+    private String[] namedNames = new String[0];
+    private String[] namedKeys = new String[0];
+    private Map<String, String> nameKeys = new HashMap<>(); // normalized names by name
+    private double[] namedLons = new double[0];
+    private double[] namedLats = new double[0];
+    private KdTree namedIndex = new KdTree(new double[0], new double[0]);
+
+    /** Appended to the map path to name the snapshot mapped by a graph with changes. */
+    static final String CHANGED_SUFFIX = ".changed" + GraphSnapshot.SUFFIX;
+
+    private static final Set<String> UNKNOWN_ROAD =
+            Collections.singleton(Router.NavigationDirection.UNKNOWN_ROAD);
+
+    /* Frozen road graph in compressed sparse row form, see GraphStore. Vertices are numbered
+     * 0..V-1 in the order they appeared in the map file. */
+    private GraphStore store;
+    private Set<String>[] roadSets; // the distinct sets of road names
+    private IntBuffer vertexRoadSets; // index into roadSets of each vertex, or -1
+    private KdTree spatialIndex; // vertex indices by location
+    private ContractionHierarchy hierarchy; // built or loaded on first use
+    private final Object hierarchyLock = new Object(); // so other routes need not wait
+    private Landmarks landmarks; // built or loaded on first use
+    private final Object landmarksLock = new Object();
+    private final String dbPath;
+    private final Storage storage; // as asked for, even if it fell back to HEAP
+    private final boolean changed; // has osmChange files applied, so differs from dbPath
+    private OsmModel model; // the map with all changes applied, read on first update
+
+    /** Where the frozen road graph lives. */
+    public enum Storage {
+        /** Copied into heap arrays. */
+        HEAP,
+        /** Read in place from the memory-mapped snapshot file, sharing the page cache with
+         * other processes serving the same map. */
+        MAPPED
+    }
+
+    /** How the map file is read when there is no usable snapshot. */
+    public enum Ingestion {
+        /** Reads the file once, holding every node until the graph is frozen. */
+        SINGLE_PASS,
+        /** Reads the ways first to find the nodes on routable roads, then reads the file again
+         * keeping only those and the named nodes. This takes longer but holds far fewer nodes
+         * at once when most of the file is buildings and other shapes. */
+        TWO_PASS
+    }
 
     /**
-     * @param dbPath Path to the XML file to be parsed.
+     * Loads the graph onto the heap, see GraphDB(String, Storage).
+     * @param dbPath Path to the OSM XML or PBF file to be parsed.
      */
     public GraphDB(String dbPath) {
+        this(dbPath, Storage.HEAP);
+    }
+
+    /**
+     * Loads the graph from the snapshot next to dbPath if it was built from the current
+     * contents of that file, and otherwise parses the map and writes a fresh snapshot.
+     * @param dbPath Path to the OSM XML or PBF file to be parsed.
+     * @param storage Where to keep the road graph. MAPPED falls back to HEAP if the snapshot
+     *                cannot be written or mapped.
+     */
+    public GraphDB(String dbPath, Storage storage) {
+        this(dbPath, storage, Ingestion.SINGLE_PASS);
+    }
+
+    /**
+     * Loads the graph from the snapshot next to dbPath if it was built from the current
+     * contents of that file, and otherwise parses the map and writes a fresh snapshot. A map
+     * that cannot be read to the end, e.g. a cut-off download, gets no snapshot, so the next
+     * load reads it again rather than keeping the part read.
+     * @param dbPath Path to the OSM XML or PBF file to be parsed, which may be
+     *               gzip or bzip2 compressed.
+     * @param storage Where to keep the road graph. MAPPED falls back to HEAP if the snapshot
+     *                cannot be written or mapped.
+     * @param ingestion How to parse the map if there is no usable snapshot.
+     */
+    public GraphDB(String dbPath, Storage storage, Ingestion ingestion) {
+        this.dbPath = dbPath;
+        this.storage = storage;
+        this.changed = false;
+        boolean mapped = storage == Storage.MAPPED;
+        File inputFile = new File(dbPath);
+        File snapshotFile = new File(dbPath + GraphSnapshot.SUFFIX);
+        if (load(snapshotFile, inputFile, mapped)) {
+            return;
+        }
+        boolean parsed = parse(inputFile, ingestion);
+        freeze();
+        if (!parsed) {
+            // what was read of a truncated or unreadable map is served, but not kept
+            return;
+        }
         try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            toSnapshot().write(snapshotFile, inputFile);
+        } catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+        if (mapped) {
+            // serve from the file just written and let the heap copy be collected
+            load(snapshotFile, inputFile, true);
         }
-        clean();
+    }
+
+    // restores the graph from snapshotFile, returning false if it is missing, stale or broken
+    private boolean load(File snapshotFile, File inputFile, boolean mapped) {
+        try {
+            GraphSnapshot snapshot = GraphSnapshot.read(snapshotFile, inputFile, mapped);
+            if (snapshot != null) {
+                restore(snapshot);
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            // a corrupt or unreadable snapshot is simply rebuilt from the map
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // reads the map into the parse-time state, returning false if it could not be read whole
+    private boolean parse(File inputFile, Ingestion ingestion) {
+        try {
+            if (ingestion == Ingestion.TWO_PASS) {
+                RoutableNodes routable = new RoutableNodes();
+                OsmInput.read(inputFile, routable);
+                routable.trim();
+                OsmInput.read(inputFile, new OsmGraphBuilder(this, routable));
+            } else {
+                OsmInput.read(inputFile, new OsmGraphBuilder(this));
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Parses the OSM XML or PBF file at dbPath, ignoring and leaving alone any snapshot of it.
+     */
+    static GraphDB parseMap(String dbPath) {
+        return parseMap(dbPath, Ingestion.SINGLE_PASS);
+    }
+
+    /**
+     * Parses the OSM XML or PBF file at dbPath as ingestion says, ignoring and leaving alone
+     * any snapshot of it.
+     */
+    static GraphDB parseMap(String dbPath, Ingestion ingestion) {
+        return new GraphDB(dbPath, new File(dbPath), ingestion);
+    }
+
+    private GraphDB(String dbPath, File inputFile, Ingestion ingestion) {
+        this.dbPath = dbPath;
+        this.storage = Storage.HEAP;
+        this.changed = false;
+        parse(inputFile, ingestion);
+        freeze();
+    }
+
+    private GraphDB(String dbPath, OsmModel model, Storage storage) {
+        this.dbPath = dbPath;
+        this.storage = storage;
+        this.changed = true;
+        this.model = model;
+        model.replay(new OsmGraphBuilder(this));
+        freeze();
+        if (storage == Storage.MAPPED) {
+            // mapped from a snapshot of its own, so the one of the map itself stays valid;
+            // versions still mapping an earlier one keep it, as write() replaces the file
+            File inputFile = new File(dbPath);
+            File snapshotFile = new File(dbPath + CHANGED_SUFFIX);
+            try {
+                toSnapshot().write(snapshotFile, inputFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            load(snapshotFile, inputFile, true);
+        }
+    }
+
+    /**
+     * Returns a new graph of this map with the osmChange files in changeFiles applied, in
+     * order, leaving this graph untouched so that it can keep serving requests meanwhile.
+     * The first update reads the map file once more to keep all of its nodes and ways; later
+     * updates of the returned graph start from there. The returned graph is kept where this
+     * one is, see Storage. Changes are not written to the map or its snapshot, so they are
+     * lost on restart unless applied again.
+     * @throws IOException if the map or a change file cannot be read.
+     */
+    GraphDB withChanges(File... changeFiles) throws IOException {
+        OsmModel base;
+        synchronized (this) {
+            if (model == null) {
+                model = OsmModel.read(new File(dbPath));
+            }
+            base = model;
+        }
+        OsmModel updated = new OsmModel(base);
+        for (File changeFile : changeFiles) {
+            updated.applyChange(changeFile);
+        }
+        return new GraphDB(dbPath, updated, storage);
     }
 
     // if new location name is found, adds location and Node to map location node
     public void addLocationMapNode(long id) {
-        locationNodes.put(id, nodes.get(id));
+        int p = parsedIndex.get(id);
+        if (p != LongIntMap.MISSING) {
+            locationNodes.put(id, new Node(id, parsedLons[p], parsedLats[p]));
+        }
     }
 
     public void addWordToTrie(String word) {
-        locationTrie.insert(word);
+        locationTrie.insert(normalize(word), word);
     }
 
+    /**
+     * Returns the names of locations whose normalized name starts with the normalized prefix,
+     * each once, the names of the most locations first, followed by the names matching the
+     * words of prefix as NameIndex.search does, e.g. "Caffe Strada" for "strad".
+     */
     public List<String> getMatchingStrings(String prefix) {
-        if (locationTrie.findByPrefix(prefix) == null) {
+        return getMatchingStrings(prefix, Integer.MAX_VALUE);
+    }
+
+    /** Returns at most limit of the names getMatchingStrings(prefix) would return. */
+    public List<String> getMatchingStrings(String prefix, int limit) {
+        List<String> matches = locationTrie.findByPrefix(normalize(prefix), limit);
+        if (matches.size() < limit) {
+            // those already found may come up again
+            int wanted = (int) Math.min(Integer.MAX_VALUE, (long) limit + matches.size());
+            Set<String> found = new HashSet<>(matches);
+            for (String name : nameIndex.search(prefix, wanted, true)) {
+                if (matches.size() == limit) {
+                    break;
+                }
+                if (found.add(name)) {
+                    matches.add(name);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the names of the locations searched for by name: name itself if a location has
+     * it, else the names normalizing like it, e.g. "Caf\u00e9 Strada" for "cafe strada", else
+     * the names containing its words give or take a typo, e.g. "Caffe Strada" for "strada".
+     */
+    public List<String> getLocationNames(String name) {
+        if (locationMap.containsKey(name)) {
+            return Collections.singletonList(name);
+        }
+        List<String> names = locationTrie.findByKey(normalize(name));
+        return !names.isEmpty() ? names : nameIndex.search(name, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * Returns at most limit of the names getMatchingStrings(prefix) would return, ranked by
+     * how well they match and by how far their nearest location is from lon, lat. A name
+     * whose nearest location is radius miles farther away ranks as a name matching one step
+     * worse, where names starting with prefix match best, then names matching its words with
+     * the fewest edits.
+     *
+     * When many locations match, locations are visited nearest first, stopping as soon as no
+     * farther location could rank among the first limit; when few do, they are ranked
+     * directly, as most of the map would have to be visited to come across them.
+     */
+    public List<String> getMatchingStrings(String prefix, int limit, double lon, double lat,
+                                           double radius) {
+        String key = normalize(prefix);
+        Map<String, Integer> wordMatches = nameIndex.matches(prefix, true);
+        int wordsOnly = 0; // matches not starting with prefix
+        for (String name : wordMatches.keySet()) {
+            if (!nameKeys.get(name).startsWith(key)) {
+                wordsOnly++;
+            }
+        }
+        int matching = locationTrie.count(key) + wordsOnly;
+        if (limit <= 0 || matching == 0) {
             return new ArrayList<>();
         }
-        return locationTrie.findByPrefix(prefix);
+        Map<String, Double> scores = new HashMap<>();
+        Comparator<String> byScore = Comparator.comparing((String n) -> scores.get(n))
+                .thenComparing(n -> n);
+        Set<String> names = null;
+        if (!worthVisiting(matching, limit)) {
+            // few names, but maybe many locations
+            names = new HashSet<>(locationTrie.findByPrefix(key));
+            names.addAll(wordMatches.keySet());
+            int located = 0;
+            for (String name : names) {
+                located += locationMap.get(name).size();
+            }
+            if (worthVisiting(located, limit)) {
+                names = null;
+            }
+        }
+        if (names != null) {
+            for (String name : names) {
+                double nearest = Double.POSITIVE_INFINITY;
+                for (long id : locationMap.get(name)) {
+                    Node node = locationNodes.get(id);
+                    if (node != null) {
+                        nearest = Math.min(nearest, distance(lon, lat, node.lon, node.lat));
+                    }
+                }
+                if (nearest < Double.POSITIVE_INFINITY) {
+                    scores.put(name, matchStep(name, nameKeys.get(name), key, wordMatches)
+                            + nearest / radius);
+                }
+            }
+            List<String> result = new ArrayList<>(scores.keySet());
+            result.sort(byScore);
+            return new ArrayList<>(result.subList(0, Math.min(limit, result.size())));
+        }
+        Set<String> seen = new HashSet<>();
+        PriorityQueue<String> best = new PriorityQueue<>(byScore.reversed()); // worst on top
+        visitNamedLocations(lon, lat, (i, distance) -> {
+            if (best.size() == limit && scores.get(best.peek()) <= distance / radius) {
+                return false;
+            }
+            String name = namedNames[i];
+            if (!seen.add(name)) {
+                return true; // already ranked by a nearer location
+            }
+            double step = matchStep(name, namedKeys[i], key, wordMatches);
+            if (step >= 0) {
+                scores.put(name, step + distance / radius);
+                best.add(name);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            return scores.size() < matching;
+        });
+        List<String> result = new ArrayList<>(best);
+        result.sort(byScore);
+        return result;
+    }
+
+    // how much worse than starting with key name, with the normalized name nameKey, matches
+    private static double matchStep(String name, String nameKey, String key,
+                                    Map<String, Integer> wordMatches) {
+        if (nameKey.startsWith(key)) {
+            return 0;
+        }
+        Integer edits = wordMatches.get(name);
+        return edits == null ? -1 : 1 + edits;
+    }
+
+    /**
+     * Returns the normalized prefixes of up to length characters of the names of locations
+     * and of each of their words, i.e. every short prefix search finding something.
+     */
+    public Set<String> getSearchPrefixes(int length) {
+        Set<String> prefixes = new HashSet<>();
+        for (String key : nameKeys.values()) {
+            for (String word : key.split(" ")) {
+                int end = 0;
+                for (int i = 0; i < length && end < word.length(); i++) {
+                    end = word.offsetByCodePoints(end, 1);
+                    prefixes.add(word.substring(0, end));
+                }
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Returns the ids and names of at most limit locations bearing one of names, nearest to
+     * lon, lat first.
+     */
+    public LinkedHashMap<Long, String> getNearestLocations(Collection<String> names, double lon,
+                                                           double lat, int limit) {
+        LinkedHashMap<Long, String> result = new LinkedHashMap<>();
+        Set<String> wanted = new HashSet<>(names);
+        int matching = wanted.stream()
+                .mapToInt(name -> locationMap.getOrDefault(name, Collections.emptyList()).size())
+                .sum();
+        if (limit <= 0 || matching == 0) {
+            return result;
+        }
+        if (!worthVisiting(matching, limit)) {
+            Map<Long, String> nameOf = new HashMap<>();
+            Map<Long, Double> distances = new HashMap<>();
+            for (String name : wanted) {
+                for (long id : locationMap.getOrDefault(name, Collections.emptyList())) {
+                    Node node = locationNodes.get(id);
+                    if (node != null && nameOf.putIfAbsent(id, name) == null) {
+                        distances.put(id, distance(lon, lat, node.lon, node.lat));
+                    }
+                }
+            }
+            List<Long> ids = new ArrayList<>(distances.keySet());
+            ids.sort(Comparator.comparing((Long id) -> distances.get(id)).thenComparing(id -> id));
+            for (long id : ids.subList(0, Math.min(limit, ids.size()))) {
+                result.put(id, nameOf.get(id));
+            }
+            return result;
+        }
+        int[] found = {0};
+        visitNamedLocations(lon, lat, (i, distance) -> {
+            if (wanted.contains(namedNames[i])) {
+                result.putIfAbsent(namedIds[i], namedNames[i]);
+                found[0]++;
+            }
+            return result.size() < limit && found[0] < matching;
+        });
+        return result;
+    }
+
+    /**
+     * Returns whether finding the first limit of matching locations or names by visiting the
+     * nearest first beats ranking all of them. Spread evenly, about limit / matching of the
+     * visited ones match, so a visit costs about limit * size / matching steps against
+     * matching for ranking them all.
+     */
+    private boolean worthVisiting(int matching, int limit) {
+        return (long) matching * matching > (long) limit * namedIds.length;
+    }
+
+    /** Receives named locations, see visitNamedLocations. */
+    private interface NamedLocationVisitor {
+        /** Takes the named location i, distance miles away, and returns whether to go on. */
+        boolean visit(int i, double distance);
+    }
+
+    /**
+     * Offers the named locations to visitor nearest to lon, lat first, until it declines.
+     * Fetches them from the spatial index in batches growing fourfold, so stopping early
+     * costs about as much as the locations visited.
+     */
+    private void visitNamedLocations(double lon, double lat, NamedLocationVisitor visitor) {
+        int size = namedIds.length;
+        int visited = 0;
+        for (int k = Math.min(size, 64); visited < size; k = Math.min(size, k * 4)) {
+            int[] nearest = namedIndex.nearest(lon, lat, k);
+            for (; visited < nearest.length; visited++) {
+                int i = nearest[visited];
+                if (!visitor.visit(i, distance(lon, lat, namedLons[i], namedLats[i]))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // fills the named location arrays and their spatial index from locationMap
+    private void indexNamedLocations() {
+        int size = 0;
+        for (List<Long> ids : locationMap.values()) {
+            size += ids.size();
+        }
+        namedIds = new long[size];
+        namedNames = new String[size];
+        namedKeys = new String[size];
+        nameKeys = new HashMap<>();
+        double[] lons = new double[size];
+        double[] lats = new double[size];
+        int i = 0;
+        for (Map.Entry<String, List<Long>> entry : locationMap.entrySet()) {
+            String key = normalize(entry.getKey());
+            nameKeys.put(entry.getKey(), key);
+            for (long id : entry.getValue()) {
+                Node node = locationNodes.get(id);
+                if (node == null) {
+                    continue;
+                }
+                namedIds[i] = id;
+                namedNames[i] = entry.getKey();
+                namedKeys[i] = key;
+                lons[i] = node.getLon();
+                lats[i] = node.getLat();
+                i++;
+            }
+        }
+        namedIds = Arrays.copyOf(namedIds, i);
+        namedNames = Arrays.copyOf(namedNames, i);
+        namedKeys = Arrays.copyOf(namedKeys, i);
+        namedLons = Arrays.copyOf(lons, i);
+        namedLats = Arrays.copyOf(lats, i);
+        namedIndex = new KdTree(namedLons, namedLats);
     }
 
 //
@@ -70,9 +531,6 @@ public class GraphDB {
         private long id;
         private double lon;
         private double lat;
-        //private  String location;
-        private  Set<String> roads;
-        private Set<Long> neighbors;
 
         public double getLon() {
             return this.lon;
@@ -101,51 +559,294 @@ public class GraphDB {
 
     // inserts the string name into an exiting node in the nodes map
     public void insertRoad(long id, String street) {
-        Node node = nodes.get(id);
-        if (node.roads == null) {
-            node.roads = new HashSet<>();
+        int p = parsedIndex.get(id);
+        if (p == LongIntMap.MISSING) {
+            return; // ways may refer to nodes outside the extract
         }
-        node.roads.add(street);
+        if (parsedRoads[p] == null) {
+            parsedRoads[p] = new HashSet<>();
+        }
+        parsedRoads[p].add(street);
     }
 
     public void addNode(Node node) {
-        nodes.put(node.id, node);
+        addNode(node.id, node.lon, node.lat);
+    }
+
+    // adds a node, replacing an earlier node with the same id but keeping its place in order
+    public void addNode(long id, double lon, double lat) {
+        int p = parsedIndex.get(id);
+        if (p == LongIntMap.MISSING) {
+            if (parsedCount == parsedIds.length) {
+                int capacity = parsedCount * 2;
+                parsedIds = Arrays.copyOf(parsedIds, capacity);
+                parsedLons = Arrays.copyOf(parsedLons, capacity);
+                parsedLats = Arrays.copyOf(parsedLats, capacity);
+                parsedRoads = Arrays.copyOf(parsedRoads, capacity);
+            }
+            p = parsedCount++;
+            parsedIndex.put(id, p);
+        }
+        parsedIds[p] = id;
+        parsedLons[p] = lon;
+        parsedLats[p] = lat;
+        parsedRoads[p] = null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Set<String>[] newRoadArray(int size) {
+        return new Set[size];
     }
     // adds outgoing edges from node.  ie nodeID has edge to edgeID
     public void addEdge(long nodeID, long edgeID) {
-        Node retrievedNode = nodes.get(nodeID);
-        if (retrievedNode.neighbors == null) {
-            retrievedNode.neighbors = new HashSet<>();
+        if (edgeCount * 2 == edgeBuffer.length) {
+            edgeBuffer = Arrays.copyOf(edgeBuffer, edgeBuffer.length * 2);
         }
-        retrievedNode.neighbors.add(edgeID);
+        edgeBuffer[edgeCount * 2] = nodeID;
+        edgeBuffer[edgeCount * 2 + 1] = edgeID;
+        edgeCount += 1;
     }
 
 
     /**
-     * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
+     * Helper to process names into the form they are searched by: compatibility decomposed
+     * with accents and other combining marks removed, case folded, keeping letters and digits
+     * of any script, dropping punctuation and collapsing whitespace to single spaces. So
+     * "Caf\u00e9  Strada" becomes "cafe strada", "7-Eleven" becomes "7eleven" and
+     * "Stra\u00dfe" becomes "strasse".
      * @param s Input string.
-     * @return Cleaned string.
+     * @return Normalized string.
      */
-    static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+    static String normalize(String s) {
+        String folded = Normalizer.normalize(s, Normalizer.Form.NFKD)
+                .toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        StringBuilder result = new StringBuilder(folded.length());
+        boolean space = false;
+        for (int i = 0; i < folded.length(); ) {
+            int c = folded.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && result.length() > 0) {
+                    result.append(' ');
+                }
+                space = false;
+                result.appendCodePoint(c);
+            } else if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                space = true;
+            }
+            // combining marks and punctuation are dropped
+        }
+        return result.toString();
     }
 
     /**
      *  Remove nodes with no connections from the graph.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
+     *  The remaining nodes are packed into the compressed sparse row arrays and the parse-time
+     *  node map and edge buffer are released.
      */
-    private void clean() {
-        Iterator<Long> iterator = nodes.keySet().iterator();
-        while (iterator.hasNext()) {
-            Long key = iterator.next();
-            Node currentNode = nodes.get(key);
+    private void freeze() {
+        // count outgoing edges per node, ignoring edges to nodes missing from the file
+        int[] edgeFrom = new int[edgeCount];
+        int[] edgeTo = new int[edgeCount];
+        int[] degree = new int[parsedCount];
+        for (int e = 0; e < edgeCount; e++) {
+            edgeFrom[e] = parsedIndex.get(edgeBuffer[e * 2]);
+            edgeTo[e] = parsedIndex.get(edgeBuffer[e * 2 + 1]);
+            if (edgeFrom[e] != LongIntMap.MISSING && edgeTo[e] != LongIntMap.MISSING) {
+                degree[edgeFrom[e]] += 1;
+            }
+        }
+
+        //  keeps a node only if it has outgoing edges
+        int size = 0;
+        for (int p = 0; p < parsedCount; p++) {
+            if (degree[p] > 0) {
+                size += 1;
+            }
+        }
+        long[] ids = new long[size];
+        double[] lons = new double[size];
+        double[] lats = new double[size];
+        int[] roads = new int[size];
+        int[] offsets = new int[size + 1];
+        LongIntMap index = new LongIntMap(size);
+
+        // consecutive nodes of a way share the same road names, so store each set once
+        Map<Set<String>, Integer> sharedRoads = new HashMap<>();
+        List<Set<String>> roadSetList = new ArrayList<>();
+        int[] vertexOf = new int[parsedCount]; // parse order to vertex index
+        int i = 0;
+        for (int p = 0; p < parsedCount; p++) {
+            if (degree[p] == 0) {
+                continue;
+            }
+            vertexOf[p] = i;
+            ids[i] = parsedIds[p];
+            lons[i] = parsedLons[p];
+            lats[i] = parsedLats[p];
+            roads[i] = -1;
+            Set<String> road = parsedRoads[p];
+            if (road != null) {
+                Integer shared = sharedRoads.get(road);
+                if (shared == null) {
+                    shared = roadSetList.size();
+                    roadSetList.add(Collections.unmodifiableSet(road));
+                    sharedRoads.put(road, shared);
+                }
+                roads[i] = shared;
+            }
+            offsets[i + 1] = offsets[i] + degree[p];
+            index.put(ids[i], i);
+            i += 1;
+        }
 
-            //  removes node if node has no outgoing edges
-            if (currentNode.neighbors == null) {
-                iterator.remove();
+        // scatter each edge into its source's slice
+        int[] targets = new int[offsets[size]];
+        int[] fill = Arrays.copyOf(offsets, size);
+        for (int e = 0; e < edgeCount; e++) {
+            if (edgeFrom[e] != LongIntMap.MISSING && edgeTo[e] != LongIntMap.MISSING) {
+                int from = vertexOf[edgeFrom[e]];
+                targets[fill[from]++] = vertexOf[edgeTo[e]];
             }
         }
+
+        // ways can repeat a segment, so drop duplicate neighbors and compact the arrays
+        int write = 0;
+        for (int v = 0; v < size; v++) {
+            int start = offsets[v];
+            int end = offsets[v + 1];
+            Arrays.sort(targets, start, end);
+            offsets[v] = write;
+            for (int e = start; e < end; e++) {
+                if (e == start || targets[e] != targets[e - 1]) {
+                    targets[write++] = targets[e];
+                }
+            }
+        }
+        offsets[size] = write;
+        targets = Arrays.copyOf(targets, write);
+        store = new ArrayGraphStore(ids, lons, lats, offsets, targets, index);
+        roadSets = roadSetList.toArray(newRoadArray(0));
+        vertexRoadSets = IntBuffer.wrap(roads);
+        spatialIndex = new KdTree(lons, lats);
+
+        releaseParseState();
+    }
+
+    private void releaseParseState() {
+        locationTrie.build();
+        nameIndex = new NameIndex(locationMap);
+        indexNamedLocations();
+        parsedIndex = null;
+        parsedIds = null;
+        parsedLons = null;
+        parsedLats = null;
+        parsedRoads = null;
+        edgeBuffer = null;
+    }
+
+    /**
+     * Packs the frozen graph and its locations into a snapshot.
+     */
+    private GraphSnapshot toSnapshot() {
+        GraphSnapshot s = new GraphSnapshot();
+        s.graph = store;
+        s.treePoints = spatialIndex.points();
+
+        // number the distinct road names; each set keeps its iteration order, so a restored
+        // set iterates in the same order
+        Map<String, Integer> nameIndex = new LinkedHashMap<>();
+        List<Integer> setNames = new ArrayList<>();
+        s.roadSetOffsets = new int[roadSets.length + 1];
+        for (int set = 0; set < roadSets.length; set++) {
+            for (String name : roadSets[set]) {
+                Integer n = nameIndex.get(name);
+                if (n == null) {
+                    n = nameIndex.size();
+                    nameIndex.put(name, n);
+                }
+                setNames.add(n);
+            }
+            s.roadSetOffsets[set + 1] = setNames.size();
+        }
+        s.roadNames = nameIndex.keySet().toArray(new String[0]);
+        s.roadSetNames = toIntArray(setNames);
+        s.vertexRoadSets = vertexRoadSets;
+
+        int locations = locationNodes.size();
+        s.locationIds = new long[locations];
+        s.locationLons = new double[locations];
+        s.locationLats = new double[locations];
+        int i = 0;
+        for (Node node : locationNodes.values()) {
+            s.locationIds[i] = node.id;
+            s.locationLons[i] = node.lon;
+            s.locationLats[i] = node.lat;
+            i += 1;
+        }
+        s.locationNames = new String[locationMap.size()];
+        s.locationNameOffsets = new int[locationMap.size() + 1];
+        List<Long> nameIds = new ArrayList<>();
+        i = 0;
+        for (Map.Entry<String, List<Long>> entry : locationMap.entrySet()) {
+            s.locationNames[i] = entry.getKey();
+            nameIds.addAll(entry.getValue());
+            s.locationNameOffsets[i + 1] = nameIds.size();
+            i += 1;
+        }
+        s.locationNameIds = new long[nameIds.size()];
+        for (int j = 0; j < s.locationNameIds.length; j++) {
+            s.locationNameIds[j] = nameIds.get(j);
+        }
+        return s;
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Takes over the graph and locations of a snapshot written by toSnapshot() and rebuilds
+     * the indices and trie that are not stored in it.
+     */
+    private void restore(GraphSnapshot s) {
+        store = s.graph;
+        spatialIndex = new KdTree(s.lons, s.lats, s.treePoints);
+
+        int sets = s.roadSetOffsets.length - 1;
+        roadSets = newRoadArray(sets);
+        for (int set = 0; set < sets; set++) {
+            Set<String> road = new HashSet<>();
+            for (int j = s.roadSetOffsets[set]; j < s.roadSetOffsets[set + 1]; j++) {
+                road.add(s.roadNames[s.roadSetNames[j]]);
+            }
+            roadSets[set] = Collections.unmodifiableSet(road);
+        }
+        vertexRoadSets = s.vertexRoadSets;
+
+        // replaces whatever was parsed before
+        locationNodes.clear();
+        locationMap = new HashMap<>();
+        locationTrie = new Trie();
+        for (int i = 0; i < s.locationIds.length; i++) {
+            long id = s.locationIds[i];
+            locationNodes.put(id, new Node(id, s.locationLons[i], s.locationLats[i]));
+        }
+        for (int n = 0; n < s.locationNames.length; n++) {
+            String name = s.locationNames[n];
+            for (int j = s.locationNameOffsets[n]; j < s.locationNameOffsets[n + 1]; j++) {
+                insertLocation(s.locationNameIds[j], name);
+                addWordToTrie(name); // once per location, as while parsing
+            }
+        }
+
+        releaseParseState();
     }
 
     /**
@@ -153,8 +854,22 @@ public class GraphDB {
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
+        return () -> new Iterator<Long>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < store.size();
+            }
 
-        return nodes.keySet();
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return store.id(i++);
+            }
+        };
     }
 
     /**
@@ -163,8 +878,186 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        Node node = nodes.get(v);
-        return node.neighbors;
+        int vertex = indexOf(v);
+        int start = store.edgeStart(vertex);
+        int end = store.edgeEnd(vertex);
+        return () -> new Iterator<Long>() {
+            private int e = start;
+
+            @Override
+            public boolean hasNext() {
+                return e < end;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return store.id(store.edgeTarget(e++));
+            }
+        };
+    }
+
+    /* Index-level accessors. Vertices are numbered 0..size() - 1 and can be walked without
+     * boxing: for (int e = edgeStart(i); e < edgeEnd(i); e++) { int j = edgeTarget(e); } */
+
+    /** Returns the number of vertices in the graph. */
+    int size() {
+        return store.size();
+    }
+
+    /** Returns whether v is the id of a vertex of this graph. */
+    boolean hasVertex(long v) {
+        return store.indexOf(v) != LongIntMap.MISSING;
+    }
+
+    /**
+     * Returns the dense index of the vertex with OSM id v.
+     * @throws NoSuchElementException if v is not a vertex of the graph.
+     */
+    int indexOf(long v) {
+        int i = store.indexOf(v);
+        if (i == LongIntMap.MISSING) {
+            throw new NoSuchElementException("no vertex with id " + v);
+        }
+        return i;
+    }
+
+    long idAt(int i) {
+        return store.id(i);
+    }
+
+    double lonAt(int i) {
+        return store.lon(i);
+    }
+
+    double latAt(int i) {
+        return store.lat(i);
+    }
+
+    int edgeStart(int i) {
+        return store.edgeStart(i);
+    }
+
+    int edgeEnd(int i) {
+        return store.edgeEnd(i);
+    }
+
+    int edgeTarget(int e) {
+        return store.edgeTarget(e);
+    }
+
+    /** Great-circle distance in miles between the vertices with indices i and j. */
+    double distanceAt(int i, int j) {
+        return distance(store.lon(i), store.lat(i), store.lon(j), store.lat(j));
+    }
+
+    /**
+     * Returns the contraction hierarchy of this graph. On first use it is read from the ".ch"
+     * file next to the map if that holds the hierarchy of this graph; otherwise the
+     * preprocessing runs and its result is written there for the next start. A graph with
+     * changes applied, or without roads, only keeps it in memory, leaving the file to the map
+     * itself. The preprocessing takes far longer than any route, so a server may call this
+     * before publishing a graph, see MapServer.ROUTE_PREPARE_PROPERTY.
+     */
+    ContractionHierarchy contractionHierarchy() {
+        synchronized (hierarchyLock) {
+            if (hierarchy != null) {
+                return hierarchy;
+            }
+            File file = new File(dbPath + ".ch");
+            boolean saved = !changed && size() > 0;
+            if (saved) {
+                hierarchy = loadContractionHierarchy(file);
+            }
+            if (hierarchy == null) {
+                hierarchy = new ContractionHierarchy(this);
+                if (saved) {
+                    try {
+                        hierarchy.save(file);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            return hierarchy;
+        }
+    }
+
+    // reads the hierarchy in file, returning null if it is missing, stale or broken
+    private ContractionHierarchy loadContractionHierarchy(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return ContractionHierarchy.load(file, this);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the ALT landmark tables of this graph. On first use they are read from the
+     * ".landmarks" file next to the map if it matches this graph; otherwise they are computed
+     * and written there for the next start. A graph with changes applied, or without roads,
+     * only keeps them in memory, leaving the file to the map itself. Like the contraction
+     * hierarchy, a server may compute them before publishing a graph.
+     */
+    Landmarks landmarks() {
+        synchronized (landmarksLock) {
+            if (landmarks != null) {
+                return landmarks;
+            }
+            File file = new File(dbPath + ".landmarks");
+            boolean saved = !changed && size() > 0;
+            if (saved && file.exists()) {
+                try {
+                    landmarks = Landmarks.load(file, this);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (landmarks == null) {
+                landmarks = new Landmarks(this, Landmarks.DEFAULT_COUNT);
+                if (saved) {
+                    try {
+                        landmarks.save(file, this);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            return landmarks;
+        }
+    }
+
+    /**
+     * Mixes the vertex ids, positions and adjacency of this graph into a single number, so
+     * that files of data computed from it can tell whether they still match it.
+     */
+    long fingerprint() {
+        long h = 1125899906842597L;
+        for (int v = 0; v < size(); v++) {
+            h = 31 * h + idAt(v);
+            h = 31 * h + Double.doubleToLongBits(lonAt(v));
+            h = 31 * h + Double.doubleToLongBits(latAt(v));
+            for (int e = edgeStart(v); e < edgeEnd(v); e++) {
+                h = 31 * h + edgeTarget(e);
+            }
+        }
+        return h;
+    }
+
+    /** Approximate heap footprint of the frozen road graph and its spatial index in bytes,
+     * excluding road names. Memory-mapped data is not counted. */
+    long memoryBytes() {
+        return store.memoryBytes() + heapBytes(spatialIndex.points()) + heapBytes(vertexRoadSets);
+    }
+
+    private static long heapBytes(IntBuffer buffer) {
+        return buffer.isDirect() ? 0 : buffer.limit() * 4L;
     }
 
     /**
@@ -225,25 +1118,41 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        if (nodes.isEmpty()) {
+        if (store.size() == 0) {
             throw new NoSuchElementException("empty map nodes");
         }
+        return store.id(spatialIndex.nearest(lon, lat));
+    }
 
-        // iterates through each node of the map and stores current node if less than the current minimum distance
-        double minDistance = Double.MAX_VALUE;
-        long closestNode = 0;
-
-        for (long id : nodes.keySet()) {
-            Node node = nodes.get(id);
-            double currentDistance = distance(node.lon, node.lat, lon, lat);
+    /**
+     * Returns the k vertices closest to the given longitude and latitude, nearest first.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The maximum number of vertices to return.
+     * @return The ids of up to k vertices ordered by great-circle distance to the target.
+     */
+    List<Long> closest(double lon, double lat, int k) {
+        return toIds(spatialIndex.nearest(lon, lat, k));
+    }
 
-            if (currentDistance < minDistance) {
-                closestNode = node.id;
-                minDistance = currentDistance;
-            }
+    /**
+     * Returns all vertices within radius miles of the given longitude and latitude,
+     * nearest first.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param radius The search radius in miles.
+     * @return The ids of the vertices ordered by great-circle distance to the target.
+     */
+    List<Long> within(double lon, double lat, double radius) {
+        return toIds(spatialIndex.within(lon, lat, radius));
+    }
 
+    private List<Long> toIds(int[] vertices) {
+        List<Long> result = new ArrayList<>(vertices.length);
+        for (int v : vertices) {
+            result.add(store.id(v));
         }
-        return closestNode;
+        return result;
     }
 
     /**
@@ -252,9 +1161,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        Node node = nodes.get(v);
-
-        return node.lon;
+        return store.lon(indexOf(v));
     }
 
     /**
@@ -263,27 +1170,22 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        Node node = nodes.get(v);
-        return node.lat;
+        return store.lat(indexOf(v));
     }
 
     public Set<String> getRoad(long v) {
-        Set road = nodes.get(v).roads;
-        if (road == null) {
-            road = new HashSet();
-            road.add("unknown road");
-        }
-        return road;
+        int set = vertexRoadSets.get(indexOf(v));
+        return set == -1 ? UNKNOWN_ROAD : roadSets[set];
     }
 
     public  void printRoadSetTest() {
-        for (Long key: nodes.keySet()) {
-            Set<String> road = nodes.get(key).roads;
-            if( road == null) {
+        for (int i = 0; i < store.size(); i++) {
+            int set = vertexRoadSets.get(i);
+            if (set == -1) {
                 continue;
             }
-            else if (road.size() > 1) {
-                System.out.println(road);
+            else if (roadSets[set].size() > 1) {
+                System.out.println(roadSets[set]);
             }
         }
     }
@@ -23,6 +23,8 @@ public class GraphDBLauncher {
         }
 
         System.out.println("There are " + vertices.size() + " vertices in the graph.");
+        System.out.println("The road graph takes about " + g.memoryBytes() / vertices.size()
+                + " bytes per vertex.");
 
         System.out.println("The first 10 vertices are:");
         for (int i = 0; i < 10; i += 1) {
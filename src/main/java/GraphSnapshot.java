@@ -0,0 +1,389 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary image of a frozen GraphDB, so a server can start without reparsing the OSM
+ * XML. The file holds the road graph, its id table and k-d tree order, the road names and the
+ * locations; only the trie is rebuilt on load.
+ *
+ * The file starts with a magic number, a format version and the CRC-32 and length of the
+ * XML file it was built from, so a snapshot left behind by an older build or an older map is
+ * recognized and ignored. It is followed by sections, each a count, a byte length and the
+ * data padded to a multiple of 8 bytes. Primitive arrays are stored big-endian and strings
+ * as length-prefixed UTF-8. Every section is mapped on its own, so the file may exceed 2GB
+ * as long as each section fits in one mapping.
+ *
+ * A snapshot is read either onto the heap or as views of the mapped file (see
+ * MappedGraphStore), in which case the graph is never copied.
+ */
+public class GraphSnapshot {
+    /** Appended to the map path to name its snapshot file. */
+    public static final String SUFFIX = ".snapshot";
+    private static final int MAGIC = 0x424d4753; // "BMGS"
+    /** Bump whenever the layout below or the meaning of its contents changes, so old
+     * snapshots are rebuilt. 3 keeps location names as written rather than cleaned. */
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 24;
+
+    /* Road graph, views of its coordinates and the vertex indices in k-d tree order, see
+     * KdTree.points(). The coordinate views are only set by read(). */
+    GraphStore graph;
+    DoubleBuffer lons;
+    DoubleBuffer lats;
+    IntBuffer treePoints;
+
+    /* Road names: the distinct road name sets in CSR form over roadNames, and the index of
+     * each vertex's set, or -1 for vertices on no named road. */
+    String[] roadNames;
+    int[] roadSetOffsets;
+    int[] roadSetNames;
+    IntBuffer vertexRoadSets;
+
+    /* Location nodes, and the ids of the locations with each name in CSR form. */
+    long[] locationIds;
+    double[] locationLons;
+    double[] locationLats;
+    String[] locationNames;
+    int[] locationNameOffsets;
+    long[] locationNameIds;
+
+    /**
+     * Returns the CRC-32 of the contents of file.
+     */
+    static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes this snapshot to file for the map in source. The data goes to a temporary file
+     * first and is moved into place, so readers never see a partial snapshot and processes
+     * still mapping the old file keep a consistent view of it.
+     */
+    void write(File file, File source) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            writeTo(tmp, source);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    private void writeTo(File tmp, File source) throws IOException {
+        try (SnapshotOutput out = new SnapshotOutput(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(checksum(source));
+            out.writeLong(source.length());
+
+            int n = graph.size();
+            section(out, n, 8);
+            for (int i = 0; i < n; i++) {
+                out.writeLong(graph.id(i));
+            }
+            section(out, n, 8);
+            for (int i = 0; i < n; i++) {
+                out.writeDouble(graph.lon(i));
+            }
+            section(out, n, 8);
+            for (int i = 0; i < n; i++) {
+                out.writeDouble(graph.lat(i));
+            }
+            section(out, n + 1, 4);
+            for (int i = 0; i < n; i++) {
+                out.writeInt(graph.edgeStart(i));
+            }
+            out.writeInt(graph.edgeCount());
+            pad(out);
+            section(out, graph.edgeCount(), 4);
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                out.writeInt(graph.edgeTarget(e));
+            }
+            pad(out);
+
+            // same capacity as a LongIntMap of n keys, so the table is at most half full
+            int capacity = Integer.highestOneBit(Math.max(4, n * 2 - 1)) << 1;
+            long[] keys = new long[capacity];
+            int[] values = new int[capacity];
+            MappedGraphStore.buildIndex(graph, keys, values);
+            writeLongs(out, keys);
+            writeInts(out, IntBuffer.wrap(values));
+            writeInts(out, treePoints);
+
+            writeStrings(out, roadNames);
+            writeInts(out, IntBuffer.wrap(roadSetOffsets));
+            writeInts(out, IntBuffer.wrap(roadSetNames));
+            writeInts(out, vertexRoadSets);
+
+            writeLongs(out, locationIds);
+            writeDoubles(out, locationLons);
+            writeDoubles(out, locationLats);
+            writeStrings(out, locationNames);
+            writeInts(out, IntBuffer.wrap(locationNameOffsets));
+            writeLongs(out, locationNameIds);
+        }
+    }
+
+    /**
+     * Reads the snapshot in file.
+     * @param source The map the snapshot must have been built from. If it does not exist,
+     *               the snapshot is trusted as is.
+     * @param mapped Whether to serve the graph, its id table, k-d tree order and road name
+     *               indices from the mapped file instead of copying them onto the heap.
+     * @return The snapshot, or null if file is missing, was written by a different format
+     * version or does not match source.
+     */
+    static GraphSnapshot read(File file, File source, boolean mapped) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                continue;
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC
+                    || header.getInt() != VERSION) {
+                return null;
+            }
+            long sourceChecksum = header.getLong();
+            long sourceLength = header.getLong();
+            if (source.isFile() && (source.length() != sourceLength
+                    || checksum(source) != sourceChecksum)) {
+                return null;
+            }
+
+            Sections in = new Sections(channel, HEADER_BYTES);
+            GraphSnapshot s = new GraphSnapshot();
+            LongBuffer ids = in.next().asLongBuffer();
+            DoubleBuffer lons = in.next().asDoubleBuffer();
+            DoubleBuffer lats = in.next().asDoubleBuffer();
+            IntBuffer offsets = in.next().asIntBuffer();
+            IntBuffer targets = in.next().asIntBuffer();
+            LongBuffer indexKeys = in.next().asLongBuffer();
+            IntBuffer indexValues = in.next().asIntBuffer();
+            IntBuffer treePoints = in.next().asIntBuffer();
+            if (mapped) {
+                s.graph = new MappedGraphStore(ids, lons, lats, offsets, targets,
+                        indexKeys, indexValues);
+                s.lons = lons;
+                s.lats = lats;
+                s.treePoints = treePoints;
+            } else {
+                double[] lonArray = doubles(lons);
+                double[] latArray = doubles(lats);
+                s.graph = new ArrayGraphStore(longs(ids), lonArray, latArray,
+                        ints(offsets), ints(targets));
+                s.lons = DoubleBuffer.wrap(lonArray);
+                s.lats = DoubleBuffer.wrap(latArray);
+                s.treePoints = IntBuffer.wrap(ints(treePoints));
+            }
+
+            s.roadNames = strings(in.next());
+            s.roadSetOffsets = ints(in.next().asIntBuffer());
+            s.roadSetNames = ints(in.next().asIntBuffer());
+            IntBuffer vertexRoadSets = in.next().asIntBuffer();
+            s.vertexRoadSets = mapped ? vertexRoadSets : IntBuffer.wrap(ints(vertexRoadSets));
+
+            s.locationIds = longs(in.next().asLongBuffer());
+            s.locationLons = doubles(in.next().asDoubleBuffer());
+            s.locationLats = doubles(in.next().asDoubleBuffer());
+            s.locationNames = strings(in.next());
+            s.locationNameOffsets = ints(in.next().asIntBuffer());
+            s.locationNameIds = longs(in.next().asLongBuffer());
+            return s;
+        }
+    }
+
+    /**
+     * Walks the sections of a snapshot, mapping each one separately. A mapping stays valid
+     * after its channel is closed.
+     */
+    private static class Sections {
+        private final FileChannel channel;
+        private long position;
+
+        Sections(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        // returns the data of the next section, positioned at its first element
+        ByteBuffer next() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    throw new IOException("snapshot truncated at byte " + position);
+                }
+            }
+            header.flip();
+            long count = header.getLong();
+            long bytes = header.getLong();
+            if (count < 0 || count > Integer.MAX_VALUE || bytes < 0
+                    || position + 16 + bytes > channel.size()) {
+                throw new IOException("corrupt snapshot section at byte " + position);
+            }
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IOException("snapshot section of " + bytes + " bytes is too large");
+            }
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, position + 16, bytes);
+            position += 16 + ((bytes + 7) & ~7L);
+            return data;
+        }
+    }
+
+    /* Writing: each section is its element count and byte length, then the padded data. */
+
+    private static void section(SnapshotOutput out, long count, int elementBytes)
+            throws IOException {
+        out.writeLong(count);
+        out.writeLong(count * elementBytes);
+    }
+
+    private static void writeLongs(SnapshotOutput out, long[] a) throws IOException {
+        section(out, a.length, 8);
+        for (long x : a) {
+            out.writeLong(x);
+        }
+    }
+
+    private static void writeDoubles(SnapshotOutput out, double[] a) throws IOException {
+        section(out, a.length, 8);
+        for (double x : a) {
+            out.writeDouble(x);
+        }
+    }
+
+    private static void writeInts(SnapshotOutput out, IntBuffer a) throws IOException {
+        section(out, a.limit(), 4);
+        for (int i = 0; i < a.limit(); i++) {
+            out.writeInt(a.get(i));
+        }
+        pad(out);
+    }
+
+    private static void writeStrings(SnapshotOutput out, String[] a) throws IOException {
+        byte[][] encoded = new byte[a.length][];
+        long bytes = 0;
+        for (int i = 0; i < a.length; i++) {
+            encoded[i] = a[i].getBytes(StandardCharsets.UTF_8);
+            bytes += 4 + encoded[i].length;
+        }
+        out.writeLong(a.length);
+        out.writeLong(bytes);
+        for (byte[] s : encoded) {
+            out.writeInt(s.length);
+            out.write(s);
+        }
+        pad(out);
+    }
+
+    /** Pads out with zeros to the next multiple of 8 bytes. */
+    static void pad(SnapshotOutput out) throws IOException {
+        while (out.position() % 8 != 0) {
+            out.writeByte(0);
+        }
+    }
+
+    /**
+     * A DataOutputStream counting the bytes written in a long, as size() stops counting at
+     * Integer.MAX_VALUE and so cannot place the padding past 2GB.
+     */
+    static class SnapshotOutput extends DataOutputStream {
+        SnapshotOutput(OutputStream out) {
+            this(out, 0);
+        }
+
+        /** Writes to out as if position bytes had already been written. */
+        SnapshotOutput(OutputStream out, long position) {
+            super(new Counter(out, position));
+        }
+
+        /** Returns the number of bytes written, including the starting position. */
+        long position() {
+            return ((Counter) out).position;
+        }
+    }
+
+    private static class Counter extends FilterOutputStream {
+        long position;
+
+        Counter(OutputStream out, long position) {
+            super(out);
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+    }
+
+    /* Reading onto the heap. */
+
+    private static long[] longs(LongBuffer in) {
+        long[] a = new long[in.remaining()];
+        in.get(a);
+        return a;
+    }
+
+    private static double[] doubles(DoubleBuffer in) {
+        double[] a = new double[in.remaining()];
+        in.get(a);
+        return a;
+    }
+
+    private static int[] ints(IntBuffer in) {
+        int[] a = new int[in.remaining()];
+        in.get(a);
+        return a;
+    }
+
+    private static String[] strings(ByteBuffer in) {
+        List<String> result = new ArrayList<>();
+        while (in.hasRemaining()) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            result.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return result.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Storage of a frozen road graph in compressed sparse row form. Vertices are numbered
+ * 0..size() - 1; the neighbors of vertex i are edgeTarget(e) for edgeStart(i) <= e <
+ * edgeEnd(i). GraphDB answers all of its queries through this interface, so the graph can
+ * live on the heap (ArrayGraphStore) or in a memory-mapped snapshot (MappedGraphStore).
+ */
+public interface GraphStore {
+    /** Number of vertices. */
+    int size();
+
+    /** Number of directed edges. */
+    int edgeCount();
+
+    /** OSM id of vertex i. */
+    long id(int i);
+
+    double lon(int i);
+
+    double lat(int i);
+
+    int edgeStart(int i);
+
+    int edgeEnd(int i);
+
+    int edgeTarget(int e);
+
+    /** Returns the index of the vertex with OSM id, or LongIntMap.MISSING if there is none. */
+    int indexOf(long id);
+
+    /** Approximate heap footprint in bytes, not counting memory-mapped data. */
+    long memoryBytes();
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The published version of the road graph together with the versions still in use. Readers
+ * pin the current version with acquire() and keep using it until they close it, however many
+ * newer versions are published meanwhile, so a request never sees two graphs. New versions
+ * are built one at a time on a background thread from the one current when their build
+ * starts, and replace it atomically once built and prepared. A replaced version drains as the readers
+ * pinning it close it; nothing refers to it afterwards, so its graph can be collected.
+ *
+ * GraphDB is never changed once built, so versions share nothing that needs locking.
+ */
+public class GraphVersions {
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "graph-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger draining = new AtomicInteger();
+    private final Preparation preparation;
+    private volatile Version current;
+
+    /** Builds a new graph from the current one. */
+    public interface Update {
+        GraphDB apply(GraphDB current) throws IOException;
+    }
+
+    /**
+     * Readies a version before it is published, e.g. runs preprocessing its requests need,
+     * so that no reader pays for it.
+     */
+    public interface Preparation {
+        void prepare(Version next);
+    }
+
+    /**
+     * One published graph. Each acquire() that returned it must be matched by exactly one
+     * close(), best in a try-with-resources statement.
+     */
+    public final class Version implements AutoCloseable {
+        private final long number;
+        private final GraphDB graph;
+        /* Readers pinning this version, plus one while it is current. */
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        private Version(GraphDB graph, long number) {
+            this.graph = graph;
+            this.number = number;
+        }
+
+        /** Returns the graph of this version. */
+        public GraphDB graph() {
+            return graph;
+        }
+
+        /** Returns the number of this version, counting up from 1 for the first graph. */
+        public long number() {
+            return number;
+        }
+
+        // adds a reader unless the version has already drained
+        private boolean pin() {
+            int n;
+            do {
+                n = users.get();
+                if (n == 0) {
+                    return false;
+                }
+            } while (!users.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        /** Unpins this version. */
+        @Override
+        public void close() {
+            if (users.decrementAndGet() == 0) {
+                draining.decrementAndGet();
+            }
+        }
+    }
+
+    /** Publishes graph as version 1. */
+    public GraphVersions(GraphDB graph) {
+        this(graph, next -> { });
+    }
+
+    /** Prepares and publishes graph as version 1, and prepares every later version. */
+    public GraphVersions(GraphDB graph, Preparation preparation) {
+        this.preparation = preparation;
+        current = prepare(graph, 1);
+    }
+
+    /** Pins and returns the current version; close it when done. */
+    public Version acquire() {
+        while (true) {
+            Version v = current;
+            if (v.pin()) {
+                return v;
+            }
+            // v was replaced and drained since it was read, so current has moved on
+        }
+    }
+
+    /**
+     * Builds and prepares a new version with update on the background thread, after any
+     * updates submitted before it, and publishes it. Readers keep getting the current version
+     * until then. Versions are only published here, so their numbers go up one at a time. If
+     * update or the preparation fails the current version stays, and the returned future holds
+     * the error.
+     * @return The future published version. It is not pinned and may have been replaced by the
+     * time it is read.
+     */
+    public Future<Version> update(Update update) {
+        return builder.submit(() -> {
+            GraphDB graph;
+            try (Version base = acquire()) {
+                graph = update.apply(base.graph());
+            }
+            return publish(prepare(graph, current.number() + 1));
+        });
+    }
+
+    // numbers graph and prepares it, before anyone can pin it
+    private Version prepare(GraphDB graph, long number) {
+        Version v = new Version(graph, number);
+        preparation.prepare(v);
+        return v;
+    }
+
+    private synchronized Version publish(Version v) {
+        Version old = current;
+        current = v;
+        draining.incrementAndGet();
+        old.close(); // old drains once its last reader is done
+        return v;
+    }
+
+    /** Returns the number of replaced versions still pinned by readers. */
+    public int draining() {
+        return draining.get();
+    }
+}
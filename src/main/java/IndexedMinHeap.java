@@ -0,0 +1,119 @@
+import java.util.NoSuchElementException;
+
+/**
+ * Binary min-heap of vertex indices 0..capacity - 1 keyed by double priorities, supporting
+ * decrease-key. Each vertex is in the heap at most once, so a search never queues stale
+ * duplicates, and the backing arrays are reused across searches.
+ */
+public class IndexedMinHeap {
+    private final int[] heap;      // heap[1..size] holds vertices
+    private final double[] keys;   // keys[v] is the priority of vertex v while it is queued
+    private final int[] position;  // position[v] is the slot of v in heap, or 0 if absent
+    private int size;
+
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity + 1];
+        keys = new double[capacity];
+        position = new int[capacity];
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int v) {
+        return position[v] != 0;
+    }
+
+    /** Returns the smallest key in the heap. */
+    public double minKey() {
+        if (size == 0) {
+            throw new NoSuchElementException("heap is empty");
+        }
+        return keys[heap[1]];
+    }
+
+    /**
+     * Inserts v with the given key, or lowers its key if v is already queued with a larger one.
+     */
+    public void insertOrDecrease(int v, double key) {
+        int slot = position[v];
+        if (slot == 0) {
+            size += 1;
+            heap[size] = v;
+            position[v] = size;
+            keys[v] = key;
+            swim(size);
+        } else if (key < keys[v]) {
+            keys[v] = key;
+            swim(slot);
+        }
+    }
+
+    /** Removes and returns the vertex with the smallest key. */
+    public int pollMin() {
+        if (size == 0) {
+            throw new NoSuchElementException("heap is empty");
+        }
+        int min = heap[1];
+        move(heap[size], 1);
+        size -= 1;
+        position[min] = 0;
+        if (size > 0) {
+            sink(1);
+        }
+        return min;
+    }
+
+    /** Removes every vertex, touching only the slots that are in use. */
+    public void clear() {
+        for (int i = 1; i <= size; i++) {
+            position[heap[i]] = 0;
+        }
+        size = 0;
+    }
+
+    private void swim(int slot) {
+        int v = heap[slot];
+        double key = keys[v];
+        while (slot > 1) {
+            int parent = slot >>> 1;
+            if (keys[heap[parent]] <= key) {
+                break;
+            }
+            move(heap[parent], slot);
+            slot = parent;
+        }
+        move(v, slot);
+    }
+
+    private void sink(int slot) {
+        int v = heap[slot];
+        double key = keys[v];
+        while (2 * slot <= size) {
+            int child = 2 * slot;
+            if (child < size && keys[heap[child + 1]] < keys[heap[child]]) {
+                child++;
+            }
+            if (key <= keys[heap[child]]) {
+                break;
+            }
+            move(heap[child], slot);
+            slot = child;
+        }
+        move(v, slot);
+    }
+
+    private void move(int v, int slot) {
+        heap[slot] = v;
+        position[v] = slot;
+    }
+}
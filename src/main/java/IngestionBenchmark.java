@@ -0,0 +1,113 @@
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Measures how fast OSM data is ingested: reading the file through OsmInput, which
+ * decompresses it if needed, then for XML the SAX-based GraphBuildingHandler and
+ * OsmXmlScanner, for PBF an OsmPbfReader decoding on one thread and on all processors, each
+ * reading into a sink that only counts elements, and then complete GraphDB builds reading the
+ * file once and twice.
+ * Usage: java IngestionBenchmark [osm.xml or osm.pbf file, possibly compressed] [rounds]
+ */
+public class IngestionBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int DEFAULT_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        File file = new File(path);
+        for (int round = 1; round <= rounds; round++) {
+            System.out.println("Round " + round);
+
+            long start = System.nanoTime();
+            long bytes = 0;
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = OsmInput.open(file)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    bytes += n;
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("  %-16s %8.0f ms %12.1f MB/s (%d bytes on disk, %d read)%n",
+                    "read", seconds * 1000, bytes / seconds / 1e6, file.length(), bytes);
+
+            Counter counter;
+            if (isPbf(file)) {
+                int processors = Runtime.getRuntime().availableProcessors();
+                counter = readPbf(file, 1, "PBF, 1 thread");
+                if (processors > 1) {
+                    counter = readPbf(file, processors, "PBF, " + processors + " threads");
+                }
+            } else {
+                counter = new Counter();
+                start = System.nanoTime();
+                try (InputStream in = OsmInput.open(file)) {
+                    SAXParserFactory.newInstance().newSAXParser()
+                            .parse(in, new GraphBuildingHandler(counter));
+                }
+                report("SAX handler", counter.elements, start);
+
+                counter = new Counter();
+                start = System.nanoTime();
+                try (InputStream in = OsmInput.open(file)) {
+                    new OsmXmlScanner(in).read(counter);
+                }
+                report("scanner", counter.elements, start);
+            }
+
+            start = System.nanoTime();
+            GraphDB g = GraphDB.parseMap(path);
+            report("GraphDB build", counter.elements, start);
+
+            start = System.nanoTime();
+            GraphDB.parseMap(path, GraphDB.Ingestion.TWO_PASS);
+            report("two-pass build", counter.elements, start);
+            if (g.size() == 0) {
+                System.out.println("  (no roads found)");
+            }
+        }
+    }
+
+    private static boolean isPbf(File file) throws IOException {
+        byte[] head = new byte[16];
+        try (InputStream in = OsmInput.open(file)) {
+            return OsmPbfReader.isPbf(head, in.read(head));
+        }
+    }
+
+    private static Counter readPbf(File file, int threads, String name) throws IOException {
+        Counter counter = new Counter();
+        long start = System.nanoTime();
+        try (InputStream in = OsmInput.open(file)) {
+            new OsmPbfReader(in, threads).read(counter);
+        }
+        report(name, counter.elements, start);
+        return counter;
+    }
+
+    private static void report(String name, long elements, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %-16s %8.0f ms %12.0f elements/s%n",
+                name, seconds * 1000, elements / seconds);
+    }
+
+    /** Counts nodes and ways. */
+    private static class Counter implements OsmSink {
+        long elements;
+
+        @Override
+        public void node(long id, double lon, double lat, String name) {
+            elements++;
+        }
+
+        @Override
+        public void way(long id, long[] refs, int count, String highway, String name) {
+            elements++;
+        }
+    }
+}
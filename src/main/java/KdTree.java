@@ -0,0 +1,274 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Static 2-d tree over points given as parallel longitude/latitude arrays, answering
+ * nearest-neighbor, k-nearest and radius queries by great-circle distance.
+ * The tree is stored implicitly: the points of a subtree occupy a range of the points array
+ * with the splitting point at its middle, splitting on longitude at even depths and on
+ * latitude at odd depths.
+ * Distances are computed with GraphDB.distance, so results match a brute-force scan exactly;
+ * ties are broken in favor of the lower point index.
+ * Coordinates and the tree order are read through buffers, so a tree saved with points() can
+ * be served straight out of a memory-mapped file.
+ */
+public class KdTree {
+    /** Slack applied to the splitting-plane bounds so rounding never prunes a true answer. */
+    private static final double BOUND_SLACK = 1 - 1e-9;
+    private static final double EARTH_RADIUS_MILES = 3963;
+
+    private final DoubleBuffer lons;
+    private final DoubleBuffer lats;
+    private final IntBuffer points;
+    private final int size;
+
+    /**
+     * Builds a tree over the points 0..lons.length - 1. The arrays are not copied.
+     * @param lons Longitude of each point.
+     * @param lats Latitude of each point.
+     */
+    public KdTree(double[] lons, double[] lats) {
+        this(DoubleBuffer.wrap(lons), DoubleBuffer.wrap(lats));
+    }
+
+    /**
+     * Builds a tree over the points 0..lons.limit() - 1. The buffers are not copied.
+     */
+    public KdTree(DoubleBuffer lons, DoubleBuffer lats) {
+        this.lons = lons;
+        this.lats = lats;
+        size = lons.limit();
+        int[] order = new int[size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        build(order, 0, order.length, 0);
+        points = IntBuffer.wrap(order);
+    }
+
+    /**
+     * Restores a tree over the given coordinates from the points() of a tree built over them.
+     */
+    public KdTree(DoubleBuffer lons, DoubleBuffer lats, IntBuffer points) {
+        this.lons = lons;
+        this.lats = lats;
+        this.points = points;
+        size = points.limit();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** The point indices in tree order, for saving the tree alongside its coordinates. */
+    public IntBuffer points() {
+        return points.asReadOnlyBuffer();
+    }
+
+    private void build(int[] order, int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(order, lo, hi - 1, mid, depth % 2 == 0 ? lons : lats);
+        build(order, lo, mid, depth + 1);
+        build(order, mid + 1, hi, depth + 1);
+    }
+
+    // quickselect: rearranges order[lo..hi] so that order[k] has the k-th smallest key
+    private static void select(int[] order, int lo, int hi, int k, DoubleBuffer key) {
+        while (hi > lo) {
+            double pivot = key.get(order[(lo + hi) >>> 1]);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (key.get(order[i]) < pivot) {
+                    i++;
+                }
+                while (key.get(order[j]) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the point closest to the given location, or -1 if the tree is empty.
+     */
+    public int nearest(double lon, double lat) {
+        int[] result = nearest(lon, lat, 1);
+        return result.length == 0 ? -1 : result[0];
+    }
+
+    /**
+     * Returns the indices of the k points closest to the given location, nearest first, or
+     * none if k is not positive.
+     */
+    public int[] nearest(double lon, double lat, int k) {
+        if (k <= 0) {
+            return new int[0];
+        }
+        Query query = new Query(lon, lat, Math.min(k, size), Double.POSITIVE_INFINITY);
+        search(query, 0, size, 0);
+        return query.sorted();
+    }
+
+    /**
+     * Returns the indices of all points within radius miles of the given location,
+     * nearest first.
+     */
+    public int[] within(double lon, double lat, double radius) {
+        Query query = new Query(lon, lat, size, radius);
+        search(query, 0, size, 0);
+        return query.sorted();
+    }
+
+    private void search(Query q, int lo, int hi, int depth) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int p = points.get(mid);
+        double lon = lons.get(p);
+        double lat = lats.get(p);
+        q.offer(p, GraphDB.distance(lon, lat, q.lon, q.lat));
+
+        boolean splitOnLon = depth % 2 == 0;
+        double delta = splitOnLon ? q.lon - lon : q.lat - lat;
+        boolean goLeft = delta < 0;
+        search(q, goLeft ? lo : mid + 1, goLeft ? mid : hi, depth + 1);
+
+        // only cross the splitting plane if a point over there could still qualify
+        double bound = splitOnLon ? meridianDistance(delta, q.lat) : parallelDistance(delta);
+        if (bound * BOUND_SLACK <= q.limit()) {
+            search(q, goLeft ? mid + 1 : lo, goLeft ? hi : mid, depth + 1);
+        }
+    }
+
+    // lower bound on the distance from a point to anything across a meridian dlon degrees away
+    private static double meridianDistance(double dlon, double lat) {
+        double x = Math.abs(Math.sin(Math.toRadians(dlon))) * Math.cos(Math.toRadians(lat));
+        return EARTH_RADIUS_MILES * Math.asin(Math.min(1, x));
+    }
+
+    // distance from a point to anything across a parallel dlat degrees away
+    private static double parallelDistance(double dlat) {
+        return EARTH_RADIUS_MILES * Math.toRadians(Math.abs(dlat));
+    }
+
+    /**
+     * Candidate set for one query: a bounded max-heap on (distance, index) holding the best
+     * capacity points seen so far that lie within radius.
+     */
+    private static class Query {
+        final double lon;
+        final double lat;
+        final double radius;
+        int[] heap;
+        double[] dist;
+        int size;
+        final int capacity;
+
+        Query(double lon, double lat, int capacity, double radius) {
+            this.lon = lon;
+            this.lat = lat;
+            this.capacity = capacity;
+            this.radius = radius;
+            int initial = Math.max(1, Math.min(capacity, 64));
+            heap = new int[initial];
+            dist = new double[initial];
+        }
+
+        // distance a new point must not exceed to be kept
+        double limit() {
+            return size < capacity ? radius : dist[0];
+        }
+
+        void offer(int p, double d) {
+            if (capacity == 0 || d > radius) {
+                return;
+            }
+            if (size < capacity) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, Math.min(capacity, size * 2));
+                    dist = Arrays.copyOf(dist, heap.length);
+                }
+                heap[size] = p;
+                dist[size] = d;
+                swim(size++);
+            } else if (worse(heap[0], dist[0], p, d)) {
+                heap[0] = p;
+                dist[0] = d;
+                sink(0);
+            }
+        }
+
+        // true if (p, dp) ranks after (q, dq)
+        private static boolean worse(int p, double dp, int q, double dq) {
+            return dp > dq || (dp == dq && p > q);
+        }
+
+        private void swim(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!worse(heap[i], dist[i], heap[parent], dist[parent])) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void sink(int i) {
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && worse(heap[child + 1], dist[child + 1],
+                        heap[child], dist[child])) {
+                    child++;
+                }
+                if (!worse(heap[child], dist[child], heap[i], dist[i])) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int p = heap[i];
+            heap[i] = heap[j];
+            heap[j] = p;
+            double d = dist[i];
+            dist[i] = dist[j];
+            dist[j] = d;
+        }
+
+        // empties the heap, returning its points nearest first
+        int[] sorted() {
+            int[] result = new int[size];
+            while (size > 0) {
+                result[size - 1] = heap[0];
+                size--;
+                heap[0] = heap[size];
+                dist[0] = dist[size];
+                sink(0);
+            }
+            return result;
+        }
+    }
+}
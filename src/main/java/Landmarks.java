@@ -0,0 +1,238 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Landmark distance tables for ALT (A*, landmarks, triangle inequality) routing.
+ * For every landmark L and vertex v the table holds the road distance d(L, v). Since all
+ * roads are two-way, the triangle inequality gives |d(L, t) - d(L, v)| <= d(v, t) for any
+ * target t, and the largest such bound over all landmarks is a consistent A* heuristic that
+ * knows about rivers and detours the straight-line distance cannot see.
+ * Landmarks are picked by farthest-point selection: each new landmark is the vertex farthest
+ * by road from all landmarks chosen so far. Roads the first landmarks cannot reach get their
+ * own: every connected part of the graph holding at least a count-th of its vertices starts
+ * with the vertex farthest from one of its own. Smaller parts get none, and A* there only
+ * has the straight-line distance to go by, over few vertices.
+ */
+public class Landmarks {
+    /** Number of landmarks used when none is given. */
+    public static final int DEFAULT_COUNT = 16;
+    private static final int FILE_MAGIC = 0x414c5432; // "ALT2"
+    /* The tables are one array indexed by an int. */
+    private static final int MAX_TABLE_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final int count;
+    private final long[] landmarkIds;
+    /** distances[v * count + l] is the road distance from landmark l to vertex v. */
+    private final double[] distances;
+
+    /**
+     * Selects at most count landmarks in g and computes their distance tables, one full
+     * Dijkstra search per landmark. Fewer are kept if g has fewer vertices to pick from, or
+     * if the tables of count landmarks would not fit in one array.
+     */
+    public Landmarks(GraphDB g, int count) {
+        int n = g.size();
+        int wanted = n == 0 ? 0 : Math.min(Math.min(count, n), MAX_TABLE_LENGTH / n);
+        long[] ids = new long[wanted];
+        double[] table = new double[n * wanted];
+
+        double[] nearest = new double[n]; // road distance to the closest landmark so far
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        double[] column = new double[n];
+        int selected = 0;
+        int[] starts = wanted == 0 ? new int[0] : components(g, (n + wanted - 1) / wanted);
+        for (int i = 0; selected < wanted; i++) {
+            int next = i < starts.length ? farthest(dijkstra(g, starts[i], column))
+                    : farthest(nearest);
+            if (next == -1) {
+                if (i < starts.length) {
+                    continue;
+                }
+                break;
+            }
+            ids[selected] = g.idAt(next);
+            dijkstra(g, next, column);
+            for (int v = 0; v < n; v++) {
+                table[v * wanted + selected] = column[v];
+                nearest[v] = Math.min(nearest[v], column[v]);
+            }
+            selected += 1;
+        }
+
+        if (selected < wanted) {
+            // drop the columns of the landmarks there was no vertex for
+            for (int v = 0; v < n; v++) {
+                System.arraycopy(table, v * wanted, table, v * selected, selected);
+            }
+            ids = Arrays.copyOf(ids, selected);
+            table = Arrays.copyOf(table, n * selected);
+        }
+        this.count = selected;
+        landmarkIds = ids;
+        distances = table;
+    }
+
+    private Landmarks(int count, long[] landmarkIds, double[] distances) {
+        this.count = count;
+        this.landmarkIds = landmarkIds;
+        this.distances = distances;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /** Bytes of distance table per landmark. */
+    public long bytesPerLandmark() {
+        return count == 0 ? 0 : distances.length / count * 8L;
+    }
+
+    /**
+     * Returns the distances from every landmark to the vertex with index t, to be passed to
+     * lowerBound() for all vertices of a search towards t.
+     */
+    double[] distancesTo(int t) {
+        return Arrays.copyOfRange(distances, t * count, (t + 1) * count);
+    }
+
+    /**
+     * Returns a lower bound on the road distance from the vertex with index v to the target
+     * whose distancesTo() are toTarget.
+     */
+    double lowerBound(int v, double[] toTarget) {
+        double bound = 0;
+        int base = v * count;
+        for (int l = 0; l < count; l++) {
+            double dv = distances[base + l];
+            double dt = toTarget[l];
+            // a landmark that cannot reach both vertices says nothing about them
+            if (dv != Double.POSITIVE_INFINITY && dt != Double.POSITIVE_INFINITY) {
+                bound = Math.max(bound, Math.abs(dt - dv));
+            }
+        }
+        return bound;
+    }
+
+    // full Dijkstra from source over g, writing the road distance to every vertex into dist
+    private static double[] dijkstra(GraphDB g, int source, double[] dist) {
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        IndexedMinHeap fringe = new IndexedMinHeap(g.size());
+        dist[source] = 0;
+        fringe.insertOrDecrease(source, 0);
+        while (!fringe.isEmpty()) {
+            int v = fringe.pollMin();
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                double d = dist[v] + g.distanceAt(v, w);
+                if (d < dist[w]) {
+                    dist[w] = d;
+                    fringe.insertOrDecrease(w, d);
+                }
+            }
+        }
+        return dist;
+    }
+
+    // a vertex of each connected part of g of at least minSize vertices, the largest first
+    private static int[] components(GraphDB g, int minSize) {
+        int n = g.size();
+        boolean[] seen = new boolean[n];
+        int[] queue = new int[n];
+        List<int[]> found = new ArrayList<>(); // vertex and size of each part
+        for (int s = 0; s < n; s++) {
+            if (seen[s]) {
+                continue;
+            }
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = s;
+            seen[s] = true;
+            while (head < tail) {
+                int v = queue[head++];
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    int w = g.edgeTarget(e);
+                    if (!seen[w]) {
+                        seen[w] = true;
+                        queue[tail++] = w;
+                    }
+                }
+            }
+            if (tail >= minSize) {
+                found.add(new int[] {s, tail});
+            }
+        }
+        found.sort((a, b) -> Integer.compare(b[1], a[1]));
+        int[] starts = new int[found.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = found.get(i)[0];
+        }
+        return starts;
+    }
+
+    // index of the largest finite, non-zero distance, or -1 if there is none
+    private static int farthest(double[] dist) {
+        int best = -1;
+        for (int v = 0; v < dist.length; v++) {
+            if (dist[v] != Double.POSITIVE_INFINITY && dist[v] > 0
+                    && (best == -1 || dist[v] > dist[best])) {
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Writes the tables to file, tagged with a fingerprint of g so stale files are detected.
+     */
+    public void save(File file, GraphDB g) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeLong(g.fingerprint());
+            out.writeInt(g.size());
+            out.writeInt(count);
+            for (long id : landmarkIds) {
+                out.writeLong(id);
+            }
+            for (double d : distances) {
+                out.writeDouble(d);
+            }
+        }
+    }
+
+    /**
+     * Reads tables written by save().
+     * @return The landmarks, or null if file was written for a different graph.
+     */
+    public static Landmarks load(File file, GraphDB g) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readLong() != g.fingerprint()
+                    || in.readInt() != g.size()) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || g.size() > 0 && count > MAX_TABLE_LENGTH / g.size()) {
+                throw new IOException("bad landmark count " + count + " in " + file);
+            }
+            long[] ids = new long[count];
+            for (int l = 0; l < count; l++) {
+                ids[l] = in.readLong();
+            }
+            double[] distances = new double[g.size() * count];
+            for (int i = 0; i < distances.length; i++) {
+                distances[i] = in.readDouble();
+            }
+            return new Landmarks(count, ids, distances);
+        }
+    }
+}
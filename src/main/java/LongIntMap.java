@@ -0,0 +1,118 @@
+/**
+ * Open-addressing hash map from primitive long keys to primitive int values.
+ * Used by GraphDB to translate OSM ids into dense vertex indices without
+ * boxing every key into a Long.
+ */
+public class LongIntMap {
+    /** Value returned by get() for keys that are not in the map. */
+    public static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /** Creates a copy of other. */
+    public LongIntMap(LongIntMap other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        used = other.used.clone();
+        size = other.size;
+        mask = other.mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // returns the value stored for key, or MISSING if key is absent
+    public int get(long key) {
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != MISSING;
+    }
+
+    public void put(long key, int value) {
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        values[slot] = value;
+        size += 1;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    // adds delta to the value stored for key, treating absent keys as 0
+    public void increment(long key, int delta) {
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        put(key, delta);
+    }
+
+    /** Approximate heap footprint of the table in bytes. */
+    public long memoryBytes() {
+        return keys.length * (8L + 4L + 1L);
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private int slot(long key) {
+        return hash(key) & mask;
+    }
+
+    /**
+     * Spreads the bits of the key so that sequential OSM ids do not cluster. Tables look a
+     * key up starting at hash(key) & (capacity - 1).
+     */
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -6,12 +6,27 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServletResponse;
 
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import org.eclipse.jetty.server.HttpOutput;
 
 import static spark.Spark.*;
 
@@ -41,11 +56,62 @@ public class MapServer {
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    /** Tiles are served one by one under this path, followed by their file name. */
+    private static final String TILE_URL_PREFIX = "/tiles/";
+    /** The names of tile files, as the render grid gives them. */
+    private static final Pattern TILE_NAME = Pattern.compile("d\\d+_x\\d+_y\\d+\\.png");
+    /**
+     * Tiles never change while the server runs, so browsers may keep them for a day and then
+     * revalidate them by their ETag.
+     */
+    private static final String TILE_CACHE_CONTROL = "public, max-age=86400";
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /**
+     * System property choosing where the road graph is kept, one of the GraphDB.Storage names
+     * in any case, e.g. -Dgraph.storage=mapped to serve it from the memory-mapped snapshot.
+     * The graph is loaded onto the heap when it is absent.
+     **/
+    private static final String GRAPH_STORAGE_PROPERTY = "graph.storage";
+    /**
+     * System property choosing how the map is parsed when it has no usable snapshot, one of
+     * the GraphDB.Ingestion names in any case, e.g. -Dgraph.ingestion=two_pass to keep peak
+     * memory down on large extracts. The file is read once when it is absent.
+     **/
+    private static final String GRAPH_INGESTION_PROPERTY = "graph.ingestion";
+    /**
+     * System property listing the routing algorithms whose preprocessing runs before each
+     * graph version is published, as comma-separated Router.Algorithm names in any case, e.g.
+     * -Droute.prepare=contraction_hierarchy,alt. Otherwise the first route using one of them runs
+     * it, as does every update of the graph then, so only list algorithms clients use.
+     **/
+    private static final String ROUTE_PREPARE_PROPERTY = "route.prepare";
+    /**
+     * System property setting the megabytes of decoded tile images kept in memory, e.g.
+     * -Dtiles.cache.mb=512. Tiles are decoded again once evicted; 0 turns the cache off.
+     **/
+    private static final String TILE_CACHE_PROPERTY = "tiles.cache.mb";
+    private static final long DEFAULT_TILE_CACHE_MB = 128;
+    /**
+     * System property setting the megabytes of finished /raster responses kept in memory, e.g.
+     * -Draster.cache.mb=128. Repeated viewports are answered from there; 0 turns it off.
+     **/
+    private static final String RASTER_CACHE_PROPERTY = "raster.cache.mb";
+    private static final long DEFAULT_RASTER_CACHE_MB = 64;
+    /**
+     * System property setting the megabytes of encoded /search responses kept in memory, e.g.
+     * -Dsearch.cache.mb=32. Repeated searches are answered from there, and the unbiased
+     * prefix searches of up to SEARCH_WARM_LENGTH characters of each graph version are put
+     * there before it is published; 0 turns it off. Biased searches are only cached once
+     * asked for, as there are too many places to warm them for; snapping the bias lets nearby
+     * views share them.
+     **/
+    private static final String SEARCH_CACHE_PROPERTY = "search.cache.mb";
+    private static final long DEFAULT_SEARCH_CACHE_MB = 16;
+    private static final int SEARCH_WARM_LENGTH = 2;
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -64,6 +130,40 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Route requests may also pick the search algorithm with this optional parameter, set to
+     * one of the Router.Algorithm names in any case, e.g. algorithm=bidirectional_astar.
+     * Plain A* is used when it is absent.
+     **/
+    private static final String ROUTE_ALGORITHM_PARAM = "algorithm";
+    /**
+     * Raster requests may leave the route out of the image with draw_route=false, for clients
+     * drawing it themselves from the route_coordinates returned by /route. Such rasters are
+     * the same for every client and stay cached while routes change.
+     **/
+    private static final String DRAW_ROUTE_PARAM = "draw_route";
+    /**
+     * Prefix searches return the names of the most locations first, as many as this optional
+     * parameter asks for, or SEARCH_LIMIT when it is absent.
+     **/
+    private static final String SEARCH_LIMIT_PARAM = "limit";
+    private static final int SEARCH_LIMIT = 10;
+    /**
+     * Searches may be biased towards a place with these optional parameters, either a center
+     * lon, lat or the viewport ullon, ullat, lrlon, lrlat, standing for its center. Biased
+     * prefix searches rank names by distance as well as by how well they match, a name
+     * SEARCH_RADIUS_MILES or half the viewport diagonal farther away ranking as one matching
+     * a step worse, and biased full searches return the limit nearest locations. The place is
+     * snapped to a grid first, see SearchBias.snapped.
+     **/
+    private static final String[] SEARCH_CENTER_PARAMS = {"lon", "lat"};
+    private static final String[] SEARCH_VIEWPORT_PARAMS = {"ullon", "ullat", "lrlon", "lrlat"};
+    private static final double SEARCH_RADIUS_MILES = 1;
+    /**
+     * Reload requests may name the map file to load with this optional parameter; the map the
+     * server started with is reloaded when it is absent.
+     **/
+    private static final String RELOAD_PATH_PARAM = "path";
 
     /**
      * The result of rastering must be a map containing all of the
@@ -72,9 +172,29 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
+    /**
+     * Each client's most recent route is kept in its HTTP session under this attribute, so
+     * concurrent users never see or overwrite each other's routes.
+     */
+    private static final String ROUTE_ATTRIBUTE = "route";
+    /** Seconds of inactivity after which a client's session, and with it its route, expires. */
+    private static final int SESSION_TIMEOUT_SECONDS = 30 * 60;
+
     private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /* Decoded tile images by path, weighed by the bytes of their pixels. */
+    private static BoundedCache<String, BufferedImage> tileCache;
+    /* Finished /raster responses, weighed by the bytes of their characters. */
+    private static BoundedCache<RasterKey, String> rasterCache;
+    /* Encoded /search responses, weighed by their bytes. */
+    private static BoundedCache<SearchKey, byte[]> searchCache;
+    private static final Gson GSON = new Gson();
+    private static final AtomicLong ROUTE_IDS = new AtomicLong();
+    /* The road graph, replaced as a whole by reloads and changes. Each request pins the
+     * version current when it starts and uses only that one. */
+    private static GraphVersions graphs;
+    private static GraphDB.Storage storage;
+    private static GraphDB.Ingestion ingestion;
+    private static Set<Router.Algorithm> preparedAlgorithms;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -84,8 +204,26 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        storage = GraphDB.Storage.valueOf(System.getProperty(GRAPH_STORAGE_PROPERTY,
+                GraphDB.Storage.HEAP.name()).toUpperCase(Locale.ROOT));
+        ingestion = GraphDB.Ingestion.valueOf(System.getProperty(GRAPH_INGESTION_PROPERTY,
+                GraphDB.Ingestion.SINGLE_PASS.name()).toUpperCase(Locale.ROOT));
+        preparedAlgorithms = EnumSet.noneOf(Router.Algorithm.class);
+        for (String name : System.getProperty(ROUTE_PREPARE_PROPERTY, "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                preparedAlgorithms.add(Router.Algorithm.valueOf(
+                        name.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
         rasterer = new Rasterer();
+        long tileCacheMb = Long.getLong(TILE_CACHE_PROPERTY, DEFAULT_TILE_CACHE_MB);
+        tileCache = new BoundedCache<>(tileCacheMb << 20, MapServer::imageBytes);
+        long rasterCacheMb = Long.getLong(RASTER_CACHE_PROPERTY, DEFAULT_RASTER_CACHE_MB);
+        rasterCache = new BoundedCache<>(rasterCacheMb << 20, json -> 2L * json.length());
+        long searchCacheMb = Long.getLong(SEARCH_CACHE_PROPERTY, DEFAULT_SEARCH_CACHE_MB);
+        searchCache = new BoundedCache<>(searchCacheMb << 20, json -> json.length);
+        graphs = new GraphVersions(new GraphDB(OSM_DB_PATH, storage, ingestion),
+                MapServer::prepare);
     }
 
     public static void main(String[] args) {
@@ -104,32 +242,93 @@ public class MapServer {
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
             Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+            if (!rasterSuccess) {
+                return new Gson().toJson(rasteredImgParams);
             }
+            /* The response only depends on the tiles and the route drawn over them, so it is
+             * reused while those stay. */
+            StoredRoute route = "false".equals(req.queryParams(DRAW_ROUTE_PARAM))
+                    ? StoredRoute.NONE : getRoute(req);
+            String raster = rasterCache.get(new RasterKey(rasteredImgParams, route),
+                    k -> renderRaster(rasteredImgParams, route.geometry));
+            if (route.forgotten) {
+                // the client found another route while this one was drawn
+                forgetRasters(route);
+            }
+            return raster;
+        });
 
-            /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
+        /* Define the endpoint describing a raster as tiles for the browser to fetch and cache
+         * one by one from /tiles, instead of as one stitched image. Takes the same parameters
+         * as /raster and does no image work; the route is not drawn. */
+        get("/raster_tiles", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            if (validateRasteredImgParams(rasteredImgParams)) {
+                String[][] renderGrid = (String[][]) rasteredImgParams.get("render_grid");
+                String[][] tileUrls = new String[renderGrid.length][];
+                for (int r = 0; r < renderGrid.length; r++) {
+                    tileUrls[r] = new String[renderGrid[r].length];
+                    for (int c = 0; c < renderGrid[r].length; c++) {
+                        tileUrls[r][c] = TILE_URL_PREFIX + renderGrid[r][c];
+                    }
+                }
+                rasteredImgParams.put("tile_urls", tileUrls);
+                rasteredImgParams.put("raster_width", renderGrid[0].length * TILE_SIZE);
+                rasteredImgParams.put("raster_height", renderGrid.length * TILE_SIZE);
+            }
+            return new Gson().toJson(rasteredImgParams);
+        });
+
+        /* Define the endpoint serving single tile files as named in render grids. */
+        get(TILE_URL_PREFIX + ":name", (req, res) -> {
+            String name = req.params(":name");
+            if (name == null || !TILE_NAME.matcher(name).matches()) {
+                halt(404, "No tile " + name + ".");
+            }
+            File tile = new File(IMG_ROOT, name);
+            if (!tile.isFile()) {
+                halt(404, "No tile " + name + ".");
+            }
+            String etag = "\"" + Long.toHexString(tile.lastModified()) + "-"
+                    + Long.toHexString(tile.length()) + "\"";
+            res.header("ETag", etag);
+            res.header("Cache-Control", TILE_CACHE_CONTROL);
+            String ifNoneMatch = req.headers("If-None-Match");
+            if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*")
+                    || Arrays.asList(ifNoneMatch.trim().split("\\s*,\\s*")).contains(etag))) {
+                res.status(304);
+                return "";
+            }
+            res.type("image/png");
+            writeFile(tile, res.raw());
+            return "";
         });
 
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            Router.Algorithm algorithm = getRouteAlgorithm(req);
+            List<Long> route;
+            String directions;
+            RouteGeometry geometry;
+            try (GraphVersions.Version v = graphs.acquire()) {
+                route = Router.shortestPath(v.graph(), params.get("start_lon"),
+                        params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                        algorithm);
+                directions = getDirectionsText(v.graph(), route);
+                geometry = new RouteGeometry(v.graph(), route);
+            }
+            setRoute(req, geometry);
             Map<String, Object> routeParams = new HashMap<>();
+            routeParams.put("route_coordinates", geometry.coordinates());
             routeParams.put("routing_success", !route.isEmpty());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
@@ -139,7 +338,7 @@ public class MapServer {
 
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            clearRoute(req);
             return true;
         });
 
@@ -147,18 +346,78 @@ public class MapServer {
         get("/search", (req, res) -> {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
-            Gson gson = new Gson();
-            /* Search for actual location data. */
-            if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
-                return gson.toJson(data);
-            } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
-                return gson.toJson(matches);
+            SearchBias near = getSearchBias(req);
+            /* Answer from the encoded responses of the current graph. */
+            try (GraphVersions.Version v = graphs.acquire()) {
+                SearchKey key = new SearchKey(v.number(), reqParams.contains("full"), term,
+                        getSearchLimit(req), near == null ? null : near.snapped());
+                return searchCache.get(key, k -> search(v.graph(), k));
+            }
+        });
+
+        /* Define the endpoint applying an osmChange file, sent as the request body, to the
+         * graph. Only local clients may use it. */
+        post("/admin/changes", (req, res) -> {
+            requireLocal(req);
+            File changeFile = File.createTempFile("changes", ".osc");
+            try {
+                Files.write(changeFile.toPath(), req.bodyAsBytes());
+                long start = System.nanoTime();
+                GraphVersions.Version updated = applyChanges(changeFile);
+                Map<String, Object> result = new HashMap<>();
+                result.put("version", updated.number());
+                result.put("vertices", updated.graph().size());
+                result.put("update_ms", (System.nanoTime() - start) / 1_000_000);
+                return new Gson().toJson(result);
+            } catch (IOException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Applying changes failed: " + e.getMessage());
+                return null;
+            } finally {
+                changeFile.delete();
             }
         });
 
+        /* Define the endpoint rebuilding the graph from a map file, by default the one it was
+         * loaded from, or from its snapshot if that is up to date. The current graph keeps
+         * serving until the new one is ready, so this returns at once. Only local clients may
+         * use it. */
+        post("/admin/reload", (req, res) -> {
+            requireLocal(req);
+            String path = req.queryParams(RELOAD_PATH_PARAM);
+            if (path == null || path.isEmpty()) {
+                path = OSM_DB_PATH;
+            }
+            if (!new File(path).isFile()) {
+                halt(HALT_RESPONSE, "No map file " + path + ".");
+            }
+            reload(path);
+            res.status(202);
+            return graphStatus();
+        });
+
+        /* Define the endpoint describing the graph versions. Only local clients may use it. */
+        get("/admin/graph", (req, res) -> {
+            requireLocal(req);
+            return graphStatus();
+        });
+
+        /* Define the endpoint reporting the hits, misses and evictions of the caches. Only
+         * local clients may use it. */
+        get("/admin/cache", (req, res) -> {
+            requireLocal(req);
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("tiles", tileCache.stats());
+            stats.put("rasters", rasterCache.stats());
+            stats.put("searches", searchCache.stats());
+            Map<String, Double> hitRates = new HashMap<>();
+            hitRates.put("tiles", tileCache.hitRate());
+            hitRates.put("rasters", rasterCache.hitRate());
+            hitRates.put("searches", searchCache.hitRate());
+            stats.put("hit_rates", hitRates);
+            return new Gson().toJson(stats);
+        });
+
         /* Define map application redirect */
         get("/", (request, response) -> {
             response.redirect("/map.html", 301);
@@ -166,6 +425,111 @@ public class MapServer {
         });
     }
 
+    /**
+     * Applies the osmChange file changeFile to the graph, building the updated graph while
+     * the current one keeps serving and then replacing it. Waits for the update, which runs
+     * after any reload or update started before it.
+     * @return The updated version.
+     */
+    static GraphVersions.Version applyChanges(File changeFile) throws IOException {
+        try {
+            return graphs.update(g -> g.withChanges(changeFile)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while applying " + changeFile);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("applying " + changeFile + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Starts building the graph of the map at path in the background, replacing the current
+     * graph once built. Changes applied to the current graph are not carried over. A map
+     * without roads is taken as a failed build and leaves the current graph in place.
+     */
+    static Future<GraphVersions.Version> reload(String path) {
+        return graphs.update(current -> {
+            long start = System.nanoTime();
+            GraphDB reloaded = new GraphDB(path, storage, ingestion);
+            if (reloaded.size() == 0) {
+                IOException e = new IOException("no roads in " + path + ", keeping the graph");
+                e.printStackTrace();
+                throw e;
+            }
+            System.out.println("Reloaded " + path + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return reloaded;
+        });
+    }
+
+    /**
+     * Readies a graph version before it serves requests, on the thread that built it: runs
+     * or loads the routing preprocessing asked for by ROUTE_PREPARE_PROPERTY, which takes far
+     * longer than a route, and fills the search cache with its shortest prefix searches.
+     */
+    private static void prepare(GraphVersions.Version next) {
+        long start = System.nanoTime();
+        if (preparedAlgorithms.contains(Router.Algorithm.CONTRACTION_HIERARCHY)) {
+            next.graph().contractionHierarchy();
+        }
+        if (preparedAlgorithms.contains(Router.Algorithm.ALT)) {
+            next.graph().landmarks();
+        }
+        warmSearchCache(next);
+        System.out.println("Prepared version " + next.number() + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Returns the current version, its size and the number of older versions still in use,
+     * as JSON.
+     */
+    private static String graphStatus() {
+        Map<String, Object> status = new HashMap<>();
+        try (GraphVersions.Version v = graphs.acquire()) {
+            status.put("version", v.number());
+            status.put("vertices", v.graph().size());
+        }
+        status.put("draining", graphs.draining());
+        return new Gson().toJson(status);
+    }
+
+    /**
+     * Sends the contents of file as the body of response. Under Jetty the file is mapped and
+     * handed to the connection as is, so it goes from the page cache to the socket without
+     * being copied through the heap.
+     */
+    private static void writeFile(File file, HttpServletResponse response) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            response.setContentLengthLong(size);
+            OutputStream out = response.getOutputStream();
+            if (out instanceof HttpOutput) {
+                ((HttpOutput) out).sendContent(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            } else {
+                Files.copy(file.toPath(), out);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Halts req unless it comes from this machine.
+     */
+    private static void requireLocal(spark.Request req) {
+        try {
+            if (!InetAddress.getByName(req.ip()).isLoopbackAddress()) {
+                halt(403, "Forbidden.");
+            }
+        } catch (UnknownHostException e) {
+            halt(403, "Forbidden.");
+        }
+    }
+
     /**
      * Validate & return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -192,12 +556,233 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Returns the routing algorithm requested by req, defaulting to A*.
+     * @param req HTTP Request.
+     * @return The Router.Algorithm named by the optional algorithm parameter.
+     */
+    private static Router.Algorithm getRouteAlgorithm(spark.Request req) {
+        String name = req.queryParams(ROUTE_ALGORITHM_PARAM);
+        if (name == null || name.isEmpty()) {
+            return Router.Algorithm.ASTAR;
+        }
+        try {
+            return Router.Algorithm.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Unknown routing algorithm " + name + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Draws the tiles of rasteredImgParams and route over them, and returns rasteredImgParams
+     * with the PNG image added as JSON.
+     */
+    private static String renderRaster(Map<String, Object> rasteredImgParams,
+                                       RouteGeometry route) {
+        /* The png image is written to the ByteArrayOutputStream */
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeImagesToOutputStream(rasteredImgParams, route, os);
+        String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+        rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+
+        /* Encode response to Json */
+        Gson gson = new Gson();
+        return gson.toJson(rasteredImgParams);
+    }
+
+    /**
+     * Identifies a rendered raster by its top left and bottom right tiles, which name its
+     * depth and extent, and the route drawn on it.
+     */
+    private static final class RasterKey {
+        private final String ulTile;
+        private final String lrTile;
+        private final long routeId;
+
+        RasterKey(Map<String, Object> rasteredImgParams, StoredRoute route) {
+            String[][] renderGrid = (String[][]) rasteredImgParams.get("render_grid");
+            String[] lastRow = renderGrid[renderGrid.length - 1];
+            this.ulTile = renderGrid[0][0];
+            this.lrTile = lastRow[lastRow.length - 1];
+            this.routeId = route.id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RasterKey)) {
+                return false;
+            }
+            RasterKey k = (RasterKey) o;
+            return ulTile.equals(k.ulTile) && lrTile.equals(k.lrTile)
+                    && routeId == k.routeId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ulTile, lrTile, routeId);
+        }
+    }
+
+    /**
+     * Returns the number of names a prefix search asked for by req, SEARCH_LIMIT by default.
+     */
+    private static int getSearchLimit(spark.Request req) {
+        String limit = req.queryParams(SEARCH_LIMIT_PARAM);
+        if (limit == null || limit.isEmpty()) {
+            return SEARCH_LIMIT;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(limit));
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect limit - provide a number.");
+            return 0;
+        }
+    }
+
+    /**
+     * What a /search response depends on: the graph version, whether it is a full search, the
+     * term, which prefix searches only use normalized, the limit unless it is a full search
+     * without bias, and the bias, snapped so that nearby views share responses.
+     */
+    static final class SearchKey {
+        private final long version;
+        private final boolean full;
+        private final String term;
+        private final int limit;
+        private final SearchBias near; // or null
+
+        SearchKey(long version, boolean full, String term, int limit, SearchBias near) {
+            this.version = version;
+            this.full = full;
+            this.term = full ? term : GraphDB.normalize(term);
+            this.limit = full && near == null ? 0 : limit;
+            this.near = near;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SearchKey)) {
+                return false;
+            }
+            SearchKey k = (SearchKey) o;
+            return version == k.version && full == k.full && term.equals(k.term)
+                    && limit == k.limit && Objects.equals(near, k.near);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(version, full, term, limit, near);
+        }
+    }
+
+    /** Returns the encoded response of the search key asks for in graph. */
+    static byte[] search(GraphDB graph, SearchKey key) {
+        Object result;
+        if (key.full) {
+            result = key.near == null ? getLocations(graph, key.term)
+                    : getLocations(graph, key.term, key.near, key.limit);
+        } else {
+            result = key.near == null ? graph.getMatchingStrings(key.term, key.limit)
+                    : graph.getMatchingStrings(key.term, key.limit, key.near.lon, key.near.lat,
+                            key.near.radius);
+        }
+        return GSON.toJson(result).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fills the search cache with the prefix searches of up to SEARCH_WARM_LENGTH characters
+     * finding something in version v, with the default limit, before v is published. Drops
+     * the searches of versions before the one v replaces; those of the replaced version are
+     * left to age out, as requests still pinning it may use them.
+     */
+    private static void warmSearchCache(GraphVersions.Version v) {
+        searchCache.removeIf(key -> key.version < v.number() - 1);
+        for (String prefix : v.graph().getSearchPrefixes(SEARCH_WARM_LENGTH)) {
+            SearchKey key = new SearchKey(v.number(), false, prefix, SEARCH_LIMIT, null);
+            searchCache.put(key, search(v.graph(), key));
+        }
+    }
+
+    /** A place searches are biased towards, see SEARCH_CENTER_PARAMS. */
+    static final class SearchBias {
+        /* Snapped biases are this many grid cells across their radius. */
+        private static final int SNAP_CELLS = 8;
+        private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+
+        final double lon;
+        final double lat;
+        final double radius; // miles
+
+        SearchBias(double lon, double lat, double radius) {
+            this.lon = lon;
+            this.lat = lat;
+            this.radius = radius;
+        }
+
+        /**
+         * Returns this bias with the radius rounded to a power of two and the center moved to
+         * the middle of its cell in a grid of SNAP_CELLS cells per radius. Views of the same
+         * scale close to each other then share one bias, which ranks about as they would.
+         */
+        SearchBias snapped() {
+            double r = Math.pow(2, Math.round(Math.log(radius) / Math.log(2)));
+            double latStep = r / SNAP_CELLS / MILES_PER_DEGREE;
+            double snappedLat = (Math.floor(lat / latStep) + 0.5) * latStep;
+            double lonStep = latStep / Math.max(0.01, Math.cos(Math.toRadians(snappedLat)));
+            double snappedLon = (Math.floor(lon / lonStep) + 0.5) * lonStep;
+            return new SearchBias(snappedLon, snappedLat, r);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SearchBias)) {
+                return false;
+            }
+            SearchBias b = (SearchBias) o;
+            return lon == b.lon && lat == b.lat && radius == b.radius;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(lon, lat, radius);
+        }
+    }
+
+    /**
+     * Returns the place a search asked to be biased towards by req, or null if it asked for
+     * none.
+     */
+    private static SearchBias getSearchBias(spark.Request req) {
+        Set<String> reqParams = req.queryParams();
+        for (String param : SEARCH_VIEWPORT_PARAMS) {
+            if (reqParams.contains(param)) {
+                Map<String, Double> box = getRequestParams(req, SEARCH_VIEWPORT_PARAMS);
+                double ullon = box.get("ullon");
+                double ullat = box.get("ullat");
+                double lrlon = box.get("lrlon");
+                double lrlat = box.get("lrlat");
+                double radius = GraphDB.distance(ullon, ullat, lrlon, lrlat) / 2;
+                return new SearchBias((ullon + lrlon) / 2, (ullat + lrlat) / 2,
+                        radius > 0 ? radius : SEARCH_RADIUS_MILES);
+            }
+        }
+        for (String param : SEARCH_CENTER_PARAMS) {
+            if (reqParams.contains(param)) {
+                Map<String, Double> center = getRequestParams(req, SEARCH_CENTER_PARAMS);
+                return new SearchBias(center.get("lon"), center.get("lat"), SEARCH_RADIUS_MILES);
+            }
+        }
+        return null;
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
      */
     private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
+                                                  RouteGeometry route,
                                                   ByteArrayOutputStream os) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
         int numVertTiles = renderGrid.length;
@@ -227,18 +812,15 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        if (route != null && route.size() > 1) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            /* Only the simplified segments within a stroke width of the image are drawn. */
+            int depth = ((Number) rasteredImageParams.get("depth")).intValue();
+            g2d.draw(route.path(depth, ullon, ullat, wdpp, hdpp, img.getWidth(),
+                    img.getHeight(), MapServer.ROUTE_STROKE_WIDTH_PX));
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
@@ -252,43 +834,125 @@ public class MapServer {
 
     }
 
+    /**
+     * Returns the decoded tile image at imgPath, from the tile cache if it is there. The image
+     * is shared, so it must only be drawn from, never drawn on.
+     */
     private static BufferedImage getImage(String imgPath) {
+        return tileCache.get(imgPath, MapServer::readImage);
+    }
+
+    private static BufferedImage readImage(String imgPath) {
         BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
+        try {
+            File in = new File(imgPath);
+            tileImg = ImageIO.read(in);
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
         }
         return tileImg;
     }
 
+    /** Returns the bytes taken by the pixels of img. */
+    private static long imageBytes(BufferedImage img) {
+        DataBuffer data = img.getRaster().getDataBuffer();
+        return (long) data.getSize() * data.getNumBanks()
+                * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+    }
+
+    /**
+     * A route kept in a client's session, numbered so that rasters drawn with it can be told
+     * apart from those drawn with any other route.
+     */
+    private static final class StoredRoute {
+        /** No route, numbered 0. */
+        static final StoredRoute NONE = new StoredRoute(0, null);
+
+        final long id;
+        final RouteGeometry geometry;
+        /** Set once the client has moved on, after which its rasters are not kept. */
+        volatile boolean forgotten;
+
+        StoredRoute(long id, RouteGeometry geometry) {
+            this.id = id;
+            this.geometry = geometry;
+        }
+    }
+
+    /**
+     * Returns the route last found for the client that sent req, or NONE if it has none.
+     * Does not create a session for clients that never asked for a route.
+     */
+    private static StoredRoute getRoute(spark.Request req) {
+        spark.Session session = req.session(false);
+        if (session == null) {
+            return StoredRoute.NONE;
+        }
+        StoredRoute route = session.attribute(ROUTE_ATTRIBUTE);
+        return route == null ? StoredRoute.NONE : route;
+    }
+
+    /**
+     * Stores route as the current route of the client that sent req.
+     */
+    private static void setRoute(spark.Request req, RouteGeometry route) {
+        spark.Session session = req.session(true);
+        session.maxInactiveInterval(SESSION_TIMEOUT_SECONDS);
+        StoredRoute old = session.attribute(ROUTE_ATTRIBUTE);
+        session.attribute(ROUTE_ATTRIBUTE,
+                new StoredRoute(ROUTE_IDS.incrementAndGet(), route));
+        forgetRasters(old);
+    }
+
     /**
-     * Clear the current found route, if it exists.
+     * Clear the current found route of the client that sent req, if it exists.
      */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
+    public static void clearRoute(spark.Request req) {
+        spark.Session session = req.session(false);
+        if (session != null) {
+            StoredRoute old = session.attribute(ROUTE_ATTRIBUTE);
+            session.removeAttribute(ROUTE_ATTRIBUTE);
+            forgetRasters(old);
+        }
+    }
+
+    // drops the cached rasters showing route, which no client will ask for again. Rasters
+    // drawn with it that are cached later are dropped by the request that drew them.
+    private static void forgetRasters(StoredRoute route) {
+        if (route != null && route != StoredRoute.NONE) {
+            route.forgotten = true;
+            rasterCache.removeIf(key -> key.routeId == route.id);
+        }
     }
 
     /**
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Collect all the names of OSM locations that prefix-match the query string, the names
+     * of the most locations first.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
-     * @return A <code>List</code> of the full names of locations whose cleaned name matches the
-     * cleaned <code>prefix</code>.
+     * @return A <code>List</code> of the full names of locations whose normalized name matches
+     * the normalized <code>prefix</code>, see GraphDB.normalize.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return graph.getMatchingStrings(prefix);
+        return getLocationsByPrefix(prefix, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like getLocationsByPrefix(prefix), but returns at most limit names, in time independent
+     * of the number of matches as long as limit is within Trie.TOP_K.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        try (GraphVersions.Version v = graphs.acquire()) {
+            return v.graph().getMatchingStrings(prefix, limit);
+        }
     }
 
     /**
-     * Collect all locations that match a cleaned <code>locationName</code>, and return
+     * Collect all locations named <code>locationName</code>, and return
      * information about each node that matches.
      * @param locationName A full name of a location searched for.
-     * @return A list of locations whose cleaned name matches the
-     * cleaned <code>locationName</code>, and each location is a map of parameters for the Json
+     * @return A list of the locations with the names GraphDB.getLocationNames finds for
+     * <code>locationName</code>, and each location is a map of parameters for the Json
      * response as specified: <br>
      * "lat" : Number, The latitude of the node. <br>
      * "lon" : Number, The longitude of the node. <br>
@@ -296,36 +960,50 @@ public class MapServer {
      * "id" : Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
-        List<Map<String, Object>> locationList = new ArrayList<>(); // lists that stores matching maps
-
-        // get a list of all IDs that the matching location name
-        List<Long> siteIDs = graph.getLocationMap().get(locationName);
-
-        // for each locationId, create a new map with javaDoc params  and add it to locations list
-        for (long id : siteIDs) {
-
-            GraphDB.Node node = graph.locationNodes.get(id);
-
-            double lat = node.getLat();
-            double lon = node.getLon();
-
-
-            // create new locationNode object and fill in;
-            //Object locnode = new locationNode(lat, lon, locationName, id);
+        try (GraphVersions.Version v = graphs.acquire()) {
+            return getLocations(v.graph(), locationName);
+        }
+    }
 
+    /**
+     * Like getLocations(locationName) in graph, but returns only the limit locations nearest
+     * to near, nearest first.
+     */
+    private static List<Map<String, Object>> getLocations(GraphDB graph, String locationName,
+                                                          SearchBias near, int limit) {
+        List<Map<String, Object>> locationList = new ArrayList<>();
+        Map<Long, String> nearest = graph.getNearestLocations(
+                graph.getLocationNames(locationName), near.lon, near.lat, limit);
+        for (Map.Entry<Long, String> e : nearest.entrySet()) {
+            locationList.add(location(graph, e.getKey(), e.getValue()));
+        }
+        return locationList;
+    }
 
-            // create new map of string and locationNodes
-            Map<String, Object> location = new HashMap();
-            location.put("name", locationName);
-            location.put("id", id);
-            location.put("lat", lat);
-            location.put("lon", lon);
-            locationList.add(location);
+    private static List<Map<String, Object>> getLocations(GraphDB graph, String locationName) {
+        List<Map<String, Object>> locationList = new ArrayList<>(); // lists that stores matching maps
 
+        // for each locationId of each matching name, create a new map with javaDoc params and
+        // add it to locations list
+        for (String name : graph.getLocationNames(locationName)) {
+            for (long id : graph.getLocationMap().get(name)) {
+                locationList.add(location(graph, id, name));
+            }
         }
         return locationList;
     }
 
+    // the map of javaDoc params of getLocations describing location id, named name
+    private static Map<String, Object> location(GraphDB graph, long id, String name) {
+        GraphDB.Node node = graph.locationNodes.get(id);
+        Map<String, Object> location = new HashMap<>();
+        location.put("name", name);
+        location.put("id", id);
+        location.put("lat", node.getLat());
+        location.put("lon", node.getLon());
+        return location;
+    }
+
 
 
     /**
@@ -350,10 +1028,10 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route found by this MapServer and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
+    private static String getDirectionsText(GraphDB graph, List<Long> route) {
         List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
         if (directions == null || directions.isEmpty()) {
           return "";
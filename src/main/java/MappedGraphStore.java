@@ -0,0 +1,120 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * GraphStore reading the graph straight out of buffers over a memory-mapped snapshot, so
+ * nothing is copied onto the heap and processes serving the same map share the page cache.
+ * OSM ids are looked up in an open-addressing table that is part of the snapshot: a slot
+ * holds an id and its vertex index, or index MISSING if the slot is free, and a key starts
+ * probing at LongIntMap.hash(key) & (capacity - 1).
+ */
+public class MappedGraphStore implements GraphStore {
+    private final LongBuffer ids;
+    private final DoubleBuffer lons;
+    private final DoubleBuffer lats;
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+    private final LongBuffer indexKeys;
+    private final IntBuffer indexValues;
+    private final int mask;
+
+    /**
+     * @param indexKeys The id of every slot of the id table; its capacity is a power of two.
+     * @param indexValues The vertex index of every slot, or LongIntMap.MISSING.
+     */
+    public MappedGraphStore(LongBuffer ids, DoubleBuffer lons, DoubleBuffer lats,
+                            IntBuffer offsets, IntBuffer targets,
+                            LongBuffer indexKeys, IntBuffer indexValues) {
+        if (Integer.bitCount(indexKeys.limit()) != 1 || indexValues.limit() != indexKeys.limit()) {
+            throw new IllegalArgumentException("id table capacity must be a power of two");
+        }
+        this.ids = ids;
+        this.lons = lons;
+        this.lats = lats;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.indexKeys = indexKeys;
+        this.indexValues = indexValues;
+        mask = indexKeys.limit() - 1;
+    }
+
+    /**
+     * Lays out the id table of the given ids for MappedGraphStore.
+     * @param keys Receives the id of every slot; its length must be a power of two greater
+     *             than ids.size().
+     * @param values Receives the vertex index of every slot, or LongIntMap.MISSING.
+     */
+    static void buildIndex(GraphStore graph, long[] keys, int[] values) {
+        Arrays.fill(values, LongIntMap.MISSING);
+        int mask = keys.length - 1;
+        for (int i = 0; i < graph.size(); i++) {
+            long id = graph.id(i);
+            int slot = LongIntMap.hash(id) & mask;
+            while (values[slot] != LongIntMap.MISSING) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = id;
+            values[slot] = i;
+        }
+    }
+
+    @Override
+    public int size() {
+        return ids.limit();
+    }
+
+    @Override
+    public int edgeCount() {
+        return targets.limit();
+    }
+
+    @Override
+    public long id(int i) {
+        return ids.get(i);
+    }
+
+    @Override
+    public double lon(int i) {
+        return lons.get(i);
+    }
+
+    @Override
+    public double lat(int i) {
+        return lats.get(i);
+    }
+
+    @Override
+    public int edgeStart(int i) {
+        return offsets.get(i);
+    }
+
+    @Override
+    public int edgeEnd(int i) {
+        return offsets.get(i + 1);
+    }
+
+    @Override
+    public int edgeTarget(int e) {
+        return targets.get(e);
+    }
+
+    @Override
+    public int indexOf(long id) {
+        int slot = LongIntMap.hash(id) & mask;
+        int value;
+        while ((value = indexValues.get(slot)) != LongIntMap.MISSING) {
+            if (indexKeys.get(slot) == id) {
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return LongIntMap.MISSING;
+    }
+
+    @Override
+    public long memoryBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds location names by their words, forgiving typos. Names are split into the tokens of
+ * their normalized form (see GraphDB.normalize), and an inverted index lists for each token
+ * the names containing it. A query matches the names containing each of its tokens, exactly
+ * or within maxEdits edits, and if asked the last one also as the start of a token, since it
+ * may still be being typed. So "strada" and "cafe strada" both find "Caffe Strada".
+ *
+ * Tokens within a few edits of a query token are found with a symmetric delete index, which
+ * maps every string left by deleting up to MAX_EDITS characters of a token to that token. Two
+ * tokens are within k edits only if deleting at most k characters from each leaves a common
+ * string, so a query token only looks up its own deletions, and computes the edit distance
+ * to the few tokens found there rather than to the whole vocabulary.
+ */
+public class NameIndex {
+    /** The most edits a query token may be away from a token it matches. */
+    static final int MAX_EDITS = 2;
+
+    private final String[] names; // sorted
+    private final int[] counts; // number of locations with each name
+    private final String[] tokens; // sorted
+    private final int[][] postings; // names containing each token, ascending
+    private final Map<String, int[]> deleted = new HashMap<>(); // tokens by their deletions
+
+    /** Indexes the names of locations, a map from each name to its locations. */
+    public NameIndex(Map<String, ? extends Collection<Long>> locations) {
+        names = locations.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        counts = new int[names.length];
+        Map<String, List<Integer>> byToken = new HashMap<>();
+        for (int n = 0; n < names.length; n++) {
+            counts[n] = locations.get(names[n]).size();
+            for (String token : tokenize(names[n])) {
+                List<Integer> posting = byToken.computeIfAbsent(token, t -> new ArrayList<>());
+                if (posting.isEmpty() || posting.get(posting.size() - 1) != n) {
+                    posting.add(n);
+                }
+            }
+        }
+        tokens = byToken.keySet().toArray(new String[0]);
+        Arrays.sort(tokens);
+        postings = new int[tokens.length][];
+        Map<String, List<Integer>> byDeletion = new HashMap<>();
+        for (int t = 0; t < tokens.length; t++) {
+            postings[t] = toArray(byToken.get(tokens[t]));
+            for (String d : deletions(tokens[t], MAX_EDITS)) {
+                byDeletion.computeIfAbsent(d, k -> new ArrayList<>()).add(t);
+            }
+        }
+        for (Map.Entry<String, List<Integer>> e : byDeletion.entrySet()) {
+            deleted.put(e.getKey(), toArray(e.getValue()));
+        }
+    }
+
+    /**
+     * Returns at most limit names containing a match for every token of query, the names
+     * needing the fewest edits in all first, then the names of the most locations.
+     * @param prefix Whether the last token of query also matches the tokens it starts.
+     */
+    public List<String> search(String query, int limit, boolean prefix) {
+        Map<Integer, Integer> edits = match(query, prefix);
+        List<Integer> order = new ArrayList<>(edits.keySet());
+        order.sort((a, b) -> {
+            if (!edits.get(a).equals(edits.get(b))) {
+                return Integer.compare(edits.get(a), edits.get(b));
+            }
+            return counts[a] != counts[b] ? Integer.compare(counts[b], counts[a])
+                    : Integer.compare(a, b);
+        });
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < order.size() && i < limit; i++) {
+            result.add(names[order.get(i)]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns every name search(query, limit, prefix) could return, with the number of edits
+     * it takes to match.
+     */
+    public Map<String, Integer> matches(String query, boolean prefix) {
+        Map<String, Integer> result = new HashMap<>();
+        for (Map.Entry<Integer, Integer> e : match(query, prefix).entrySet()) {
+            result.put(names[e.getKey()], e.getValue());
+        }
+        return result;
+    }
+
+    // the names matching every token of query, and the edits that takes
+    private Map<Integer, Integer> match(String query, boolean prefix) {
+        String[] words = tokenize(query);
+        Map<Integer, Integer> edits = new HashMap<>(); // by name
+        for (int i = 0; i < words.length; i++) {
+            Map<Integer, Integer> matches = matchToken(words[i], prefix && i == words.length - 1);
+            if (i == 0) {
+                edits = matches;
+            } else {
+                Map<Integer, Integer> both = new HashMap<>();
+                for (Map.Entry<Integer, Integer> e : edits.entrySet()) {
+                    Integer more = matches.get(e.getKey());
+                    if (more != null) {
+                        both.put(e.getKey(), e.getValue() + more);
+                    }
+                }
+                edits = both;
+            }
+            if (edits.isEmpty()) {
+                break;
+            }
+        }
+        return edits;
+    }
+
+    /** Returns the number of distinct tokens indexed. */
+    public int tokens() {
+        return tokens.length;
+    }
+
+    /**
+     * Returns how many edits a query token of the given length may be away from the tokens
+     * it matches: none for short tokens, where a typo leaves too little to go by.
+     */
+    static int maxEdits(int length) {
+        return length < 4 ? 0 : length < 8 ? 1 : MAX_EDITS;
+    }
+
+    // the names with a token matching q, and the fewest edits their best token takes
+    private Map<Integer, Integer> matchToken(String q, boolean prefix) {
+        Map<Integer, Integer> matched = new HashMap<>(); // tokens
+        int max = maxEdits(q.length());
+        Set<Integer> checked = new HashSet<>();
+        for (String d : deletions(q, max)) {
+            int[] candidates = deleted.get(d);
+            if (candidates == null) {
+                continue;
+            }
+            for (int t : candidates) {
+                if (checked.add(t)) {
+                    int e = distance(q, tokens[t], max);
+                    if (e <= max) {
+                        matched.put(t, e);
+                    }
+                }
+            }
+        }
+        if (prefix) {
+            for (int t = lowerBound(q); t < tokens.length && tokens[t].startsWith(q); t++) {
+                matched.put(t, 0);
+            }
+        }
+        Map<Integer, Integer> result = new HashMap<>();
+        for (Map.Entry<Integer, Integer> e : matched.entrySet()) {
+            for (int n : postings[e.getKey()]) {
+                result.merge(n, e.getValue(), Math::min);
+            }
+        }
+        return result;
+    }
+
+    // the first token not less than prefix
+    private int lowerBound(String prefix) {
+        int lo = 0;
+        int hi = tokens.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokens[mid].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Splits the normalized form of s into its tokens. */
+    static String[] tokenize(String s) {
+        String normalized = GraphDB.normalize(s);
+        return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+    }
+
+    /** Returns s and every string left by deleting at most edits of its characters. */
+    static Set<String> deletions(String s, int edits) {
+        Set<String> result = new HashSet<>();
+        result.add(s);
+        List<String> frontier = new ArrayList<>(result);
+        for (int e = 0; e < edits; e++) {
+            List<String> next = new ArrayList<>();
+            for (String f : frontier) {
+                for (int i = 0; i < f.length(); i++) {
+                    String d = f.substring(0, i) + f.substring(i + 1);
+                    if (result.add(d)) {
+                        next.add(d);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of insertions, deletions, substitutions and swaps of adjacent
+     * characters turning a into b, or max + 1 if that is more than max, in which case it stops
+     * as soon as that is certain.
+     */
+    static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int m = b.length();
+        int[] before = new int[m + 1]; // row i - 2
+        int[] previous = new int[m + 1]; // row i - 1
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= m; j++) {
+                int substitution = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1),
+                        previous[j - 1] + substitution);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2)
+                        && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d = Math.min(d, before[j - 2] + 1);
+                }
+                current[j] = d;
+                rowMin = Math.min(rowMin, d);
+            }
+            // no later row has a smaller minimum, swaps included
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] recycled = before;
+            before = previous;
+            previous = current;
+            current = recycled;
+        }
+        return Math.min(previous[m], max + 1);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+
+/**
+ * A run of OSM elements in file order, held in primitive arrays until it is replayed into
+ * another sink. Nodes and ways are kept in separate arrays, and isWay records which kind each
+ * element is. Used to hand elements between threads, see OsmPipeline and OsmPbfReader.
+ */
+class OsmBatch implements OsmSink {
+    int size;
+    private boolean[] isWay;
+
+    private int nodeCount;
+    private long[] nodeIds;
+    private double[] lons;
+    private double[] lats;
+    private String[] nodeNames;
+
+    /* The refs of way w are refs[refEnds[w - 1]..refEnds[w]), starting at 0 for w = 0. */
+    private int wayCount;
+    private long[] wayIds = new long[16];
+    private int[] refEnds = new int[16];
+    private long[] refs = new long[256];
+    private String[] highways = new String[16];
+    private String[] wayNames = new String[16];
+
+    /**
+     * @param capacity The number of elements to make room for up front.
+     */
+    OsmBatch(int capacity) {
+        capacity = Math.max(capacity, 16);
+        isWay = new boolean[capacity];
+        nodeIds = new long[capacity];
+        lons = new double[capacity];
+        lats = new double[capacity];
+        nodeNames = new String[capacity];
+    }
+
+    @Override
+    public void node(long id, double lon, double lat, String name) {
+        if (nodeCount == nodeIds.length) {
+            int capacity = nodeCount * 2;
+            nodeIds = Arrays.copyOf(nodeIds, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+            lats = Arrays.copyOf(lats, capacity);
+            nodeNames = Arrays.copyOf(nodeNames, capacity);
+        }
+        nodeIds[nodeCount] = id;
+        lons[nodeCount] = lon;
+        lats[nodeCount] = lat;
+        nodeNames[nodeCount] = name;
+        nodeCount++;
+        add(false);
+    }
+
+    @Override
+    public void way(long id, long[] wayRefs, int count, String highway, String name) {
+        if (wayCount == refEnds.length) {
+            wayIds = Arrays.copyOf(wayIds, wayCount * 2);
+            refEnds = Arrays.copyOf(refEnds, wayCount * 2);
+            highways = Arrays.copyOf(highways, wayCount * 2);
+            wayNames = Arrays.copyOf(wayNames, wayCount * 2);
+        }
+        int start = wayCount == 0 ? 0 : refEnds[wayCount - 1];
+        if (start + count > refs.length) {
+            refs = Arrays.copyOf(refs, Math.max(refs.length * 2, start + count));
+        }
+        System.arraycopy(wayRefs, 0, refs, start, count);
+        wayIds[wayCount] = id;
+        refEnds[wayCount] = start + count;
+        highways[wayCount] = highway;
+        wayNames[wayCount] = name;
+        wayCount++;
+        add(true);
+    }
+
+    private void add(boolean way) {
+        if (size == isWay.length) {
+            isWay = Arrays.copyOf(isWay, size * 2);
+        }
+        isWay[size++] = way;
+    }
+
+    /** Reports every element of this batch to sink, in order. */
+    void replay(OsmSink sink) {
+        long[] scratch = new long[16];
+        int node = 0;
+        int way = 0;
+        for (int i = 0; i < size; i++) {
+            if (!isWay[i]) {
+                sink.node(nodeIds[node], lons[node], lats[node], nodeNames[node]);
+                node++;
+            } else {
+                int start = way == 0 ? 0 : refEnds[way - 1];
+                int count = refEnds[way] - start;
+                if (count > scratch.length) {
+                    scratch = new long[Math.max(count, scratch.length * 2)];
+                }
+                System.arraycopy(refs, start, scratch, 0, count);
+                sink.way(wayIds[way], scratch, count, highways[way], wayNames[way]);
+                way++;
+            }
+        }
+    }
+}
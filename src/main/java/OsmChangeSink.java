@@ -0,0 +1,19 @@
+/**
+ * Receives the elements of an osmChange file in file order, each after the action that
+ * applies to it. See <a href="http://wiki.openstreetmap.org/wiki/OsmChange">osmChange</a>.
+ */
+public interface OsmChangeSink extends OsmSink {
+    /** What happens to the elements that follow. */
+    enum Action {
+        /** They are new. */
+        CREATE,
+        /** They replace the elements with the same ids. */
+        MODIFY,
+        /** The elements with their ids are removed; only the ids are meaningful, and deleted
+         * nodes may be reported with NaN coordinates. */
+        DELETE
+    }
+
+    /** Sets the action applying to the elements reported until the next call. */
+    void action(Action action);
+}
@@ -0,0 +1,73 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds a GraphDB from the elements of an OSM file, under some constraints: only ways with
+ * an allowed highway tag become edges, the name of a way becomes a road name of all of its
+ * nodes, and named nodes become locations, searchable by their normalized name.
+ * See OSM documentation on
+ * <a href="http://wiki.openstreetmap.org/wiki/Key:highway">the highway tag</a>,
+ * <a href="http://wiki.openstreetmap.org/wiki/Way">the way XML element</a> and
+ * <a href="http://wiki.openstreetmap.org/wiki/Node">the node XML element</a>.
+ */
+public class OsmGraphBuilder implements OsmSink {
+    /**
+     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
+     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
+     * roads, but in practice we walk all over them with such impunity that we forget cars can
+     * actually drive on them.
+     */
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
+                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
+                    "secondary_link", "tertiary_link"));
+
+    private final GraphDB g;
+    private final RoutableNodes routable;
+
+    /**
+     * @param g The graph to populate.
+     */
+    public OsmGraphBuilder(GraphDB g) {
+        this(g, null);
+    }
+
+    /**
+     * @param g The graph to populate.
+     * @param routable If not null, the nodes on routable ways found by a first pass over the
+     *                 same file. Only these and named nodes are added to g.
+     */
+    public OsmGraphBuilder(GraphDB g, RoutableNodes routable) {
+        this.g = g;
+        this.routable = routable;
+    }
+
+    @Override
+    public void node(long id, double lon, double lat, String name) {
+        if (name == null && routable != null && !routable.contains(id)) {
+            return; // never part of the graph
+        }
+        g.addNode(id, lon, lat);
+        if (name != null) {
+            g.insertLocation(id, name);
+            g.addLocationMapNode(id);
+            g.addWordToTrie(name);
+        }
+    }
+
+    @Override
+    public void way(long id, long[] refs, int count, String highway, String name) {
+        if (name != null) {
+            for (int i = 0; i < count; i++) {
+                g.insertRoad(refs[i], name);
+            }
+        }
+        if (highway != null && ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+            for (int i = 1; i < count; i++) {
+                g.addEdge(refs[i - 1], refs[i]);
+                g.addEdge(refs[i], refs[i - 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens OSM map files, recognizing their format by their first bytes rather than their name:
+ * gzip and bzip2 compressed files are decompressed, and the (decompressed) contents are read
+ * as PBF if they start like a PBF file and as XML otherwise.
+ *
+ * Compressed files are decompressed on a thread of their own through a
+ * BackgroundInputStream, so decompressing overlaps with parsing. Zstandard is recognized but
+ * not supported, as no pure Java decoder is available.
+ */
+public class OsmInput {
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Enough bytes to recognize every compression and OsmPbfReader.isPbf. */
+    private static final int HEAD_SIZE = 16;
+
+    /** The kinds of compression recognized by their magic numbers. */
+    enum Compression {
+        NONE, GZIP, BZIP2, ZSTD;
+
+        static Compression of(byte[] head, int length) {
+            if (length >= 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+                return GZIP;
+            }
+            if (length >= 3 && head[0] == 'B' && head[1] == 'Z' && head[2] == 'h') {
+                return BZIP2;
+            }
+            if (length >= 4 && (head[0] & 0xff) == 0x28 && (head[1] & 0xff) == 0xb5
+                    && (head[2] & 0xff) == 0x2f && (head[3] & 0xff) == 0xfd) {
+                return ZSTD;
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * Opens file for reading, decompressing it on a separate thread if it is compressed. The
+     * returned stream is buffered and supports mark.
+     */
+    public static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            InputStream decompressed;
+            switch (Compression.of(head(in), HEAD_SIZE)) {
+                case GZIP:
+                    decompressed = new GZIPInputStream(in, BUFFER_SIZE);
+                    break;
+                case BZIP2:
+                    // pbzip2 and lbzip2 write one stream per block
+                    decompressed = new BZip2CompressorInputStream(in, true);
+                    break;
+                case ZSTD:
+                    throw new IOException(file + " is Zstandard compressed, which is not"
+                            + " supported; use gzip or bzip2, or decompress it first");
+                default:
+                    return in;
+            }
+            return new BufferedInputStream(
+                    new BackgroundInputStream(decompressed, "osm-decompressor"), BUFFER_SIZE);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads every node and way of the map in file into sink, parsing on separate threads
+     * while the calling thread runs the sink.
+     */
+    public static void read(File file, OsmSink sink) throws IOException {
+        try (InputStream in = open(file)) {
+            if (OsmPbfReader.isPbf(head(in), HEAD_SIZE)) {
+                new OsmPbfReader(in).read(sink);
+            } else {
+                OsmPipeline.run(new OsmXmlScanner(in), sink);
+            }
+        }
+    }
+
+    // returns the first bytes of in, padded with zeros, without consuming them
+    private static byte[] head(InputStream in) throws IOException {
+        byte[] head = new byte[HEAD_SIZE];
+        in.mark(HEAD_SIZE);
+        int n = 0;
+        int read;
+        while (n < HEAD_SIZE && (read = in.read(head, n, HEAD_SIZE - n)) >= 0) {
+            n += read;
+        }
+        in.reset();
+        return head;
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The nodes and ways of a map as far as GraphDB cares about them, kept so that osmChange
+ * files can be applied without reparsing the map. Every node is kept, since a new way may
+ * refer to any of them, but only the ways OsmGraphBuilder uses: those with an allowed
+ * highway tag or a name.
+ *
+ * Elements keep their position when they are modified and new ones are appended, so
+ * replaying a model into a sink reports its elements in the order of a map file with the
+ * changes merged in. Deleted elements leave unused slots behind.
+ */
+public class OsmModel implements OsmChangeSink {
+    private Action action = Action.CREATE;
+
+    /* Node slots, indexed by id in nodeIndex; nodeLive is false for deleted ones. */
+    private LongIntMap nodeIndex;
+    private long[] nodeIds;
+    private double[] lons;
+    private double[] lats;
+    private String[] nodeNames;
+    private boolean[] nodeLive;
+    private int nodeCount;
+
+    /* Way slots, likewise. The refs of slot w are refs[refStart[w]..refStart[w] + refCount[w]),
+     * and refs[refsUsed..] is free. */
+    private LongIntMap wayIndex;
+    private long[] wayIds;
+    private int[] refStart;
+    private int[] refCount;
+    private String[] highways;
+    private String[] wayNames;
+    private boolean[] wayLive;
+    private int wayCount;
+    private long[] refs;
+    private int refsUsed;
+
+    public OsmModel() {
+        nodeIndex = new LongIntMap(1024);
+        nodeIds = new long[1024];
+        lons = new double[1024];
+        lats = new double[1024];
+        nodeNames = new String[1024];
+        nodeLive = new boolean[1024];
+        wayIndex = new LongIntMap(256);
+        wayIds = new long[256];
+        refStart = new int[256];
+        refCount = new int[256];
+        highways = new String[256];
+        wayNames = new String[256];
+        wayLive = new boolean[256];
+        refs = new long[1024];
+    }
+
+    /**
+     * Creates a copy of other, which changes to either leave the other alone. The refs of
+     * modified and deleted ways are left out of the copy.
+     */
+    public OsmModel(OsmModel other) {
+        nodeIndex = new LongIntMap(other.nodeIndex);
+        nodeIds = other.nodeIds.clone();
+        lons = other.lons.clone();
+        lats = other.lats.clone();
+        nodeNames = other.nodeNames.clone();
+        nodeLive = other.nodeLive.clone();
+        nodeCount = other.nodeCount;
+        wayIndex = new LongIntMap(other.wayIndex);
+        wayIds = other.wayIds.clone();
+        refStart = other.refStart.clone();
+        refCount = other.refCount.clone();
+        highways = other.highways.clone();
+        wayNames = other.wayNames.clone();
+        wayLive = other.wayLive.clone();
+        wayCount = other.wayCount;
+        refs = new long[Math.max(16, other.refsUsed)];
+        for (int w = 0; w < wayCount; w++) {
+            if (wayLive[w]) {
+                System.arraycopy(other.refs, other.refStart[w], refs, refsUsed, refCount[w]);
+                refStart[w] = refsUsed;
+                refsUsed += refCount[w];
+            }
+        }
+    }
+
+    /** Reads the map in file, which may be in any format OsmInput reads. */
+    public static OsmModel read(File file) throws IOException {
+        OsmModel model = new OsmModel();
+        OsmInput.read(file, model);
+        return model;
+    }
+
+    /**
+     * Applies the osmChange file in file, which may be compressed like a map, to this model.
+     */
+    public void applyChange(File file) throws IOException {
+        try (InputStream in = OsmInput.open(file)) {
+            new OsmXmlScanner(in).readChange(this);
+        } finally {
+            action = Action.CREATE;
+        }
+    }
+
+    @Override
+    public void action(Action action) {
+        this.action = action;
+    }
+
+    @Override
+    public void node(long id, double lon, double lat, String name) {
+        int slot = nodeIndex.get(id);
+        if (slot != LongIntMap.MISSING && !nodeLive[slot]) {
+            slot = LongIntMap.MISSING; // recreated after being deleted, so it moves to the end
+        }
+        if (action == Action.DELETE) {
+            if (slot != LongIntMap.MISSING) {
+                nodeLive[slot] = false;
+                nodeNames[slot] = null;
+            }
+            return;
+        }
+        if (slot == LongIntMap.MISSING) {
+            if (nodeCount == nodeIds.length) {
+                int capacity = nodeCount * 2;
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                lons = Arrays.copyOf(lons, capacity);
+                lats = Arrays.copyOf(lats, capacity);
+                nodeNames = Arrays.copyOf(nodeNames, capacity);
+                nodeLive = Arrays.copyOf(nodeLive, capacity);
+            }
+            slot = nodeCount++;
+            nodeIndex.put(id, slot);
+        }
+        nodeIds[slot] = id;
+        lons[slot] = lon;
+        lats[slot] = lat;
+        nodeNames[slot] = name;
+        nodeLive[slot] = true;
+    }
+
+    @Override
+    public void way(long id, long[] wayRefs, int count, String highway, String name) {
+        int slot = wayIndex.get(id);
+        if (slot != LongIntMap.MISSING && !wayLive[slot]) {
+            slot = LongIntMap.MISSING;
+        }
+        boolean used = name != null || OsmGraphBuilder.ALLOWED_HIGHWAY_TYPES.contains(highway);
+        if (action == Action.DELETE || !used) {
+            // a way modified into one the graph ignores is as good as deleted
+            if (slot != LongIntMap.MISSING) {
+                wayLive[slot] = false;
+                highways[slot] = null;
+                wayNames[slot] = null;
+            }
+            return;
+        }
+        if (slot == LongIntMap.MISSING) {
+            if (wayCount == wayIds.length) {
+                int capacity = wayCount * 2;
+                wayIds = Arrays.copyOf(wayIds, capacity);
+                refStart = Arrays.copyOf(refStart, capacity);
+                refCount = Arrays.copyOf(refCount, capacity);
+                highways = Arrays.copyOf(highways, capacity);
+                wayNames = Arrays.copyOf(wayNames, capacity);
+                wayLive = Arrays.copyOf(wayLive, capacity);
+            }
+            slot = wayCount++;
+            wayIndex.put(id, slot);
+        }
+        if (refsUsed + count > refs.length) {
+            refs = Arrays.copyOf(refs, Math.max(refs.length * 2, refsUsed + count));
+        }
+        // modified ways get fresh space; the old refs stay behind unused
+        System.arraycopy(wayRefs, 0, refs, refsUsed, count);
+        wayIds[slot] = id;
+        refStart[slot] = refsUsed;
+        refCount[slot] = count;
+        refsUsed += count;
+        highways[slot] = highway;
+        wayNames[slot] = name;
+        wayLive[slot] = true;
+    }
+
+    /** Reports every node and then every way of this model to sink. */
+    public void replay(OsmSink sink) {
+        for (int slot = 0; slot < nodeCount; slot++) {
+            if (nodeLive[slot]) {
+                sink.node(nodeIds[slot], lons[slot], lats[slot], nodeNames[slot]);
+            }
+        }
+        long[] scratch = new long[16];
+        for (int slot = 0; slot < wayCount; slot++) {
+            if (!wayLive[slot]) {
+                continue;
+            }
+            int count = refCount[slot];
+            if (count > scratch.length) {
+                scratch = new long[Math.max(count, scratch.length * 2)];
+            }
+            System.arraycopy(refs, refStart[slot], scratch, 0, count);
+            sink.way(wayIds[slot], scratch, count, highways[slot], wayNames[slot]);
+        }
+    }
+}
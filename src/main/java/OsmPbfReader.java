@@ -0,0 +1,566 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the OSM Protocolbuffer Binary Format, reporting nodes and ways to an OsmSink. See
+ * <a href="http://wiki.openstreetmap.org/wiki/PBF_Format">the PBF format</a>.
+ *
+ * A PBF file is a sequence of blobs, each a length-prefixed BlobHeader followed by a Blob of
+ * up to 32MB holding one zlib-compressed PrimitiveBlock of a few thousand elements. The
+ * calling thread only reads the blobs off the stream; they are inflated and decoded on a pool
+ * of decoder threads, and the decoded blocks are reported to the sink in file order on the
+ * calling thread. Plain and dense nodes and ways are decoded; relations, metadata and blob
+ * types other than OSMHeader and OSMData are skipped.
+ *
+ * The protobuf messages are decoded by hand, reading only the fields needed here, so no
+ * generated code or protobuf library is involved.
+ */
+public class OsmPbfReader implements OsmReader {
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int MAX_BLOB_BYTES = 32 * 1024 * 1024;
+    /** Features of the OSMHeader a file may require of its readers. */
+    private static final Set<String> SUPPORTED_FEATURES = new HashSet<>(Arrays.asList(
+            "OsmSchema-V0.6", "DenseNodes"));
+    private static final byte[] OSM_HEADER = "OSMHeader".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OSM_DATA = "OSMData".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAME = "name".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HIGHWAY = "highway".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final int threads;
+
+    /**
+     * Decodes on as many threads as there are processors.
+     * @param in The PBF file to read. It is not buffered further or closed.
+     */
+    public OsmPbfReader(InputStream in) {
+        this(in, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param in The PBF file to read. It is not buffered further or closed.
+     * @param threads The number of threads decoding blocks.
+     */
+    public OsmPbfReader(InputStream in, int threads) {
+        this.in = in;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns whether head, the first bytes of a file, look like the start of a PBF file: the
+     * length of a BlobHeader followed by its type field, which is "OSMHeader" for the first
+     * blob. At least 15 bytes are needed to tell.
+     */
+    static boolean isPbf(byte[] head, int length) {
+        if (length < 6 + OSM_HEADER.length || head[0] != 0 || head[1] != 0
+                || head[4] != 0x0a || head[5] != OSM_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < OSM_HEADER.length; i++) {
+            if (head[6 + i] != OSM_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void read(OsmSink sink) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        ExecutorService decoders = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "pbf-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // decoded blocks waiting to be reported, at most a couple per decoder
+        ArrayDeque<Future<OsmBatch>> pending = new ArrayDeque<>();
+        try {
+            int first;
+            while ((first = data.read()) >= 0) {
+                int headerLength = first << 24 | data.readUnsignedByte() << 16
+                        | data.readUnsignedShort();
+                if (headerLength < 0 || headerLength > MAX_HEADER_BYTES) {
+                    throw new IOException("PBF blob header of " + headerLength + " bytes");
+                }
+                byte[] header = new byte[headerLength];
+                data.readFully(header);
+                Message blobHeader = new Message(header, 0, headerLength);
+                Message type = null;
+                long blobLength = -1;
+                while (blobHeader.next()) {
+                    if (blobHeader.field == 1) {
+                        type = blobHeader.message();
+                    } else if (blobHeader.field == 3) {
+                        blobLength = blobHeader.varint();
+                    } else {
+                        blobHeader.skip();
+                    }
+                }
+                if (type == null || blobLength < 0 || blobLength > MAX_BLOB_BYTES) {
+                    throw new IOException("corrupt PBF blob header");
+                }
+                byte[] blob = new byte[(int) blobLength];
+                data.readFully(blob);
+
+                if (type.is(OSM_HEADER)) {
+                    checkHeader(inflate(blob));
+                } else if (type.is(OSM_DATA)) {
+                    pending.add(decoders.submit(() -> decodeBlock(inflate(blob))));
+                    while (pending.size() > threads * 2) {
+                        report(pending.remove(), sink);
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                report(pending.remove(), sink);
+            }
+        } catch (EOFException e) {
+            throw new IOException("PBF file truncated", e);
+        } finally {
+            decoders.shutdownNow();
+        }
+    }
+
+    private static void report(Future<OsmBatch> block, OsmSink sink) throws IOException {
+        try {
+            block.get().replay(sink);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while decoding PBF blocks");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("decoding a PBF block failed", e.getCause());
+        }
+    }
+
+    /** Returns the contents of a Blob message, inflating them if they are compressed. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        Message m = new Message(blob, 0, blob.length);
+        Message raw = null;
+        Message zlib = null;
+        long rawSize = -1;
+        while (m.next()) {
+            if (m.field == 1) {
+                raw = m.message();
+            } else if (m.field == 2) {
+                rawSize = m.varint();
+            } else if (m.field == 3) {
+                zlib = m.message();
+            } else if (m.field >= 4 && m.field <= 7) {
+                throw new IOException("unsupported PBF blob compression (field " + m.field
+                        + ")");
+            } else {
+                m.skip();
+            }
+        }
+        if (raw != null) {
+            return Arrays.copyOfRange(blob, raw.pos, raw.end);
+        }
+        if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_BYTES) {
+            throw new IOException("corrupt PBF blob");
+        }
+        byte[] result = new byte[(int) rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, zlib.pos, zlib.end - zlib.pos);
+            int n = 0;
+            while (n < result.length && !inflater.finished()) {
+                int inflated = inflater.inflate(result, n, result.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != result.length) {
+                throw new IOException("PBF blob inflated to " + n + " bytes instead of "
+                        + rawSize);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed PBF blob", e);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    /** Rejects files whose HeaderBlock requires features this reader does not have. */
+    private static void checkHeader(byte[] block) throws IOException {
+        Message m = new Message(block, 0, block.length);
+        while (m.next()) {
+            if (m.field == 4) {
+                String feature = m.message().string();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("PBF file requires unsupported feature " + feature);
+                }
+            } else {
+                m.skip();
+            }
+        }
+    }
+
+    /** Decodes the nodes and ways of a PrimitiveBlock. */
+    static OsmBatch decodeBlock(byte[] block) throws IOException {
+        Block b = new Block();
+        Message m = new Message(block, 0, block.length);
+        // groups may precede the granularity and offsets they depend on, so gather them first
+        ArrayDeque<Message> groups = new ArrayDeque<>();
+        while (m.next()) {
+            switch (m.field) {
+                case 1:
+                    b.readStringTable(m.message());
+                    break;
+                case 2:
+                    groups.add(m.message());
+                    break;
+                case 17:
+                    b.granularity = m.varint();
+                    break;
+                case 19:
+                    b.latOffset = m.varint();
+                    break;
+                case 20:
+                    b.lonOffset = m.varint();
+                    break;
+                default:
+                    m.skip();
+            }
+        }
+        OsmBatch batch = new OsmBatch(8000);
+        for (Message group : groups) {
+            while (group.next()) {
+                switch (group.field) {
+                    case 1:
+                        b.node(group.message(), batch);
+                        break;
+                    case 2:
+                        b.denseNodes(group.message(), batch);
+                        break;
+                    case 3:
+                        b.way(group.message(), batch);
+                        break;
+                    default:
+                        group.skip();
+                }
+            }
+        }
+        return batch;
+    }
+
+    /** The string table and coordinate encoding of one PrimitiveBlock. */
+    private static class Block {
+        long granularity = 100;
+        long latOffset;
+        long lonOffset;
+
+        /* String i is bytes[stringStart[i]..stringEnd[i]), decoded into strings[i] on first
+         * use. Only the strings tags are compared against are decoded. */
+        private byte[] bytes;
+        private int[] stringStart = new int[64];
+        private int[] stringEnd = new int[64];
+        private String[] strings;
+        private int stringCount;
+        private int nameKey = -1;
+        private int highwayKey = -1;
+        private long[] refs = new long[16];
+
+        void readStringTable(Message table) throws IOException {
+            bytes = table.buf;
+            while (table.next()) {
+                if (table.field != 1) {
+                    table.skip();
+                    continue;
+                }
+                Message s = table.message();
+                if (stringCount == stringStart.length) {
+                    stringStart = Arrays.copyOf(stringStart, stringCount * 2);
+                    stringEnd = Arrays.copyOf(stringEnd, stringCount * 2);
+                }
+                if (s.is(NAME)) {
+                    nameKey = stringCount;
+                } else if (s.is(HIGHWAY)) {
+                    highwayKey = stringCount;
+                }
+                stringStart[stringCount] = s.pos;
+                stringEnd[stringCount] = s.end;
+                stringCount++;
+            }
+            strings = new String[stringCount];
+        }
+
+        String string(long i) throws IOException {
+            if (i < 0 || i >= stringCount) {
+                throw new IOException("PBF string index " + i + " out of range");
+            }
+            int index = (int) i;
+            if (strings[index] == null) {
+                strings[index] = new String(bytes, stringStart[index],
+                        stringEnd[index] - stringStart[index], StandardCharsets.UTF_8);
+            }
+            return strings[index];
+        }
+
+        // coordinates are stored in nanodegrees; dividing by 1e9 gives the double nearest to
+        // the decimal, the same as parsing it from XML
+        double lat(long lat) {
+            return (latOffset + granularity * lat) / 1e9;
+        }
+
+        double lon(long lon) {
+            return (lonOffset + granularity * lon) / 1e9;
+        }
+
+        void node(Message m, OsmSink sink) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            Message keys = null;
+            Message values = null;
+            while (m.next()) {
+                switch (m.field) {
+                    case 1:
+                        id = m.sint64();
+                        break;
+                    case 2:
+                        keys = m.message();
+                        break;
+                    case 3:
+                        values = m.message();
+                        break;
+                    case 8:
+                        lat = m.sint64();
+                        break;
+                    case 9:
+                        lon = m.sint64();
+                        break;
+                    default:
+                        m.skip();
+                }
+            }
+            String name = null;
+            if (keys != null && values != null) {
+                while (keys.hasMore() && values.hasMore()) {
+                    long key = keys.varint();
+                    long value = values.varint();
+                    if (key == nameKey) {
+                        name = string(value);
+                    }
+                }
+            }
+            sink.node(id, lon(lon), lat(lat), name);
+        }
+
+        void denseNodes(Message m, OsmSink sink) throws IOException {
+            Message ids = null;
+            Message lats = null;
+            Message lons = null;
+            Message keysValues = null;
+            while (m.next()) {
+                switch (m.field) {
+                    case 1:
+                        ids = m.message();
+                        break;
+                    case 8:
+                        lats = m.message();
+                        break;
+                    case 9:
+                        lons = m.message();
+                        break;
+                    case 10:
+                        keysValues = m.message();
+                        break;
+                    default:
+                        m.skip();
+                }
+            }
+            if (ids == null || lats == null || lons == null) {
+                return;
+            }
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (ids.hasMore()) {
+                id += ids.sint64();
+                lat += lats.sint64();
+                lon += lons.sint64();
+                // tags of all nodes are keys and values interleaved, each node's ending in 0
+                String name = null;
+                if (keysValues != null) {
+                    long key;
+                    while (keysValues.hasMore() && (key = keysValues.varint()) != 0) {
+                        long value = keysValues.varint();
+                        if (key == nameKey) {
+                            name = string(value);
+                        }
+                    }
+                }
+                sink.node(id, lon(lon), lat(lat), name);
+            }
+        }
+
+        void way(Message m, OsmSink sink) throws IOException {
+            long id = 0;
+            Message keys = null;
+            Message values = null;
+            int refCount = 0;
+            while (m.next()) {
+                switch (m.field) {
+                    case 1:
+                        id = m.varint();
+                        break;
+                    case 2:
+                        keys = m.message();
+                        break;
+                    case 3:
+                        values = m.message();
+                        break;
+                    case 8:
+                        Message packed = m.message();
+                        long ref = 0;
+                        while (packed.hasMore()) {
+                            if (refCount == refs.length) {
+                                refs = Arrays.copyOf(refs, refCount * 2);
+                            }
+                            ref += packed.sint64();
+                            refs[refCount++] = ref;
+                        }
+                        break;
+                    default:
+                        m.skip();
+                }
+            }
+            String highway = null;
+            String name = null;
+            if (keys != null && values != null) {
+                while (keys.hasMore() && values.hasMore()) {
+                    long key = keys.varint();
+                    long value = values.varint();
+                    if (key == nameKey) {
+                        name = string(value);
+                    } else if (key == highwayKey) {
+                        highway = string(value);
+                    }
+                }
+            }
+            sink.way(id, refs, refCount, highway, name);
+        }
+    }
+
+    /**
+     * A protobuf message, or the contents of a packed field, in buf[pos..end). next() steps
+     * to the following field, which must then be read or skipped.
+     */
+    private static class Message {
+        final byte[] buf;
+        int pos;
+        final int end;
+        int field;
+        private int wireType;
+
+        Message(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return pos < end;
+        }
+
+        boolean next() throws IOException {
+            if (pos >= end) {
+                return false;
+            }
+            long key = varint();
+            field = (int) (key >>> 3);
+            wireType = (int) (key & 7);
+            return true;
+        }
+
+        long varint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) {
+                    throw new IOException("truncated PBF varint");
+                }
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed PBF varint");
+        }
+
+        // a zigzag-encoded value
+        long sint64() throws IOException {
+            long n = varint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        // the length-delimited field at the current position
+        Message message() throws IOException {
+            if (wireType != 2) {
+                throw new IOException("PBF field " + field + " is not length-delimited");
+            }
+            long length = varint();
+            if (length < 0 || length > end - pos) {
+                throw new IOException("PBF field " + field + " overruns its message");
+            }
+            Message m = new Message(buf, pos, pos + (int) length);
+            pos += (int) length;
+            return m;
+        }
+
+        void skip() throws IOException {
+            switch (wireType) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    pos += 8;
+                    break;
+                case 2:
+                    message();
+                    break;
+                case 5:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("unsupported PBF wire type " + wireType);
+            }
+            if (pos > end) {
+                throw new IOException("PBF field " + field + " overruns its message");
+            }
+        }
+
+        boolean is(byte[] ascii) {
+            if (end - pos != ascii.length) {
+                return false;
+            }
+            for (int i = 0; i < ascii.length; i++) {
+                if (buf[pos + i] != ascii[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String string() {
+            return new String(buf, pos, end - pos, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs an OsmReader on a thread of its own and passes its elements to a sink on the calling
+ * thread, so parsing the input and building the graph overlap. Elements travel in batches of
+ * primitive arrays through a small bounded queue, which keeps the reader at most a few
+ * batches ahead of the sink.
+ */
+public class OsmPipeline {
+    /** Elements per batch. */
+    private static final int BATCH_SIZE = 4096;
+    /** Batches the reader may run ahead of the sink. */
+    private static final int QUEUE_CAPACITY = 4;
+
+    /**
+     * Reads all elements of reader into sink, in order.
+     * @throws IOException if the reader fails; errors thrown by the sink are rethrown as is.
+     */
+    public static void run(OsmReader reader, OsmSink sink) throws IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Thread thread = new Thread(() -> {
+            Batch last;
+            try {
+                BatchingSink batches = new BatchingSink(queue);
+                reader.read(batches);
+                last = batches.batch;
+            } catch (Throwable e) {
+                last = new Batch();
+                last.error = e;
+            }
+            last.isLast = true;
+            try {
+                queue.put(last);
+            } catch (InterruptedException e) {
+                // the consumer gave up
+            }
+        }, "osm-reader");
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            while (true) {
+                Batch batch = queue.take();
+                if (batch.error != null) {
+                    throw batch.error instanceof IOException ? (IOException) batch.error
+                            : new IOException("reading OSM data failed", batch.error);
+                }
+                batch.replay(sink);
+                if (batch.isLast) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading OSM data");
+        } finally {
+            // stops a reader blocked on a full queue after the sink failed
+            thread.interrupt();
+        }
+    }
+
+    /** Collects elements into batches and queues every full batch. */
+    private static class BatchingSink implements OsmSink {
+        private final BlockingQueue<Batch> queue;
+        Batch batch = new Batch();
+
+        BatchingSink(BlockingQueue<Batch> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void node(long id, double lon, double lat, String name) {
+            batch.node(id, lon, lat, name);
+            flushIfFull();
+        }
+
+        @Override
+        public void way(long id, long[] refs, int count, String highway, String name) {
+            batch.way(id, refs, count, highway, name);
+            flushIfFull();
+        }
+
+        private void flushIfFull() {
+            if (batch.size < BATCH_SIZE) {
+                return;
+            }
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("OSM reader interrupted");
+            }
+            batch = new Batch();
+        }
+    }
+
+    /** A batch that may also end the stream, normally or with the error the reader hit. */
+    private static class Batch extends OsmBatch {
+        boolean isLast;
+        Throwable error;
+
+        Batch() {
+            super(BATCH_SIZE);
+        }
+    }
+}
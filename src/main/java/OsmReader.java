@@ -0,0 +1,10 @@
+import java.io.IOException;
+
+/**
+ * A source of OSM data that reports its elements to a sink, such as an OsmXmlScanner over a
+ * file. OsmPipeline runs readers on a thread of their own.
+ */
+public interface OsmReader {
+    /** Reports every node and way to sink, in file order. */
+    void read(OsmSink sink) throws IOException;
+}
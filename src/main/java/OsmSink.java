@@ -0,0 +1,19 @@
+/**
+ * Receives the nodes and ways of an OSM file in file order. Relations are not reported.
+ */
+public interface OsmSink {
+    /**
+     * A node.
+     * @param name The value of its name tag, or null if it has none.
+     */
+    void node(long id, double lon, double lat, String name);
+
+    /**
+     * A way through the nodes refs[0] .. refs[count - 1]. The array belongs to the caller
+     * and may be reused once this method returns.
+     * @param id The id of the way.
+     * @param highway The value of its highway tag, or null if it has none.
+     * @param name The value of its name tag, or null if it has none.
+     */
+    void way(long id, long[] refs, int count, String highway, String name);
+}
@@ -0,0 +1,504 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads OSM XML straight from the bytes of a stream, reporting nodes and ways to an OsmSink.
+ * It understands just enough XML for OSM files: tags, attributes in either kind of quotes,
+ * character and predefined entity references, comments and processing instructions; text
+ * content and DTDs are skipped. Unlike a SAX handler it creates no strings for element or
+ * attribute names, parses ids and coordinates directly from the buffer, and only decodes
+ * the values of name and highway tags. It also reads osmChange files, see readChange().
+ */
+public class OsmXmlScanner implements OsmReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_ATTRIBUTES = 16;
+
+    private static final byte[] NODE = ascii("node");
+    private static final byte[] WAY = ascii("way");
+    private static final byte[] ND = ascii("nd");
+    private static final byte[] TAG = ascii("tag");
+    private static final byte[] ID = ascii("id");
+    private static final byte[] LON = ascii("lon");
+    private static final byte[] LAT = ascii("lat");
+    private static final byte[] REF = ascii("ref");
+    private static final byte[] K = ascii("k");
+    private static final byte[] V = ascii("v");
+    private static final byte[] NAME = ascii("name");
+    private static final byte[] HIGHWAY = ascii("highway");
+    private static final byte[] CREATE = ascii("create");
+    private static final byte[] MODIFY = ascii("modify");
+    private static final byte[] DELETE = ascii("delete");
+
+    /** Powers of ten that are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final InputStream in;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+
+    /* The current tag occupies buf[tagStart..tagEnd], tagEnd being its closing '>'. Its
+     * attribute names and values are buf[nameStart[i]..nameEnd[i]) and
+     * buf[valueStart[i]..valueEnd[i]). */
+    private int tagStart;
+    private int tagEnd;
+    private int attributeCount;
+    private final int[] nameStart = new int[MAX_ATTRIBUTES];
+    private final int[] nameEnd = new int[MAX_ATTRIBUTES];
+    private final int[] valueStart = new int[MAX_ATTRIBUTES];
+    private final int[] valueEnd = new int[MAX_ATTRIBUTES];
+
+    /**
+     * @param in The OSM XML to read. It is not buffered further or closed.
+     */
+    public OsmXmlScanner(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public void read(OsmSink sink) throws IOException {
+        scan(sink, null);
+    }
+
+    /**
+     * Reads an osmChange file, reporting its create, modify and delete sections to sink as
+     * well as their elements. Deleted nodes need no coordinates.
+     */
+    public void readChange(OsmChangeSink sink) throws IOException {
+        scan(sink, sink);
+    }
+
+    // reads the elements into sink, and the actions of an osmChange file into changes if set
+    private void scan(OsmSink sink, OsmChangeSink changes) throws IOException {
+        boolean deleting = false;
+        boolean inNode = false;
+        boolean inWay = false;
+        long nodeId = 0;
+        double nodeLon = 0;
+        double nodeLat = 0;
+        long wayId = 0;
+        long[] refs = new long[16];
+        int refCount = 0;
+        String highway = null;
+        String name = null;
+
+        while (nextTag()) {
+            byte first = buf[tagStart + 1];
+            if (first == '/') {
+                int start = tagStart + 2;
+                int end = nameEnd(start);
+                if (inNode && matches(start, end, NODE)) {
+                    inNode = false;
+                    sink.node(nodeId, nodeLon, nodeLat, name);
+                } else if (inWay && matches(start, end, WAY)) {
+                    inWay = false;
+                    sink.way(wayId, refs, refCount, highway, name);
+                }
+                continue;
+            }
+            if (first == '?' || first == '!') {
+                continue;
+            }
+
+            int start = tagStart + 1;
+            int end = nameEnd(start);
+            boolean empty = buf[tagEnd - 1] == '/';
+            if (matches(start, end, NODE)) {
+                parseAttributes(end);
+                nodeId = parseLong(attribute(ID));
+                if (deleting && findAttribute(LON) < 0) {
+                    nodeLon = Double.NaN;
+                    nodeLat = Double.NaN;
+                } else {
+                    nodeLon = parseDouble(attribute(LON));
+                    nodeLat = parseDouble(attribute(LAT));
+                }
+                name = null;
+                if (empty) {
+                    sink.node(nodeId, nodeLon, nodeLat, null);
+                } else {
+                    inNode = true;
+                }
+            } else if (matches(start, end, WAY)) {
+                parseAttributes(end);
+                wayId = parseLong(attribute(ID));
+                refCount = 0;
+                highway = null;
+                name = null;
+                if (empty) {
+                    sink.way(wayId, refs, 0, null, null);
+                } else {
+                    inWay = true;
+                }
+            } else if (inWay && matches(start, end, ND)) {
+                parseAttributes(end);
+                if (refCount == refs.length) {
+                    refs = Arrays.copyOf(refs, refs.length * 2);
+                }
+                refs[refCount++] = parseLong(attribute(REF));
+            } else if ((inNode || inWay) && matches(start, end, TAG)) {
+                parseAttributes(end);
+                int k = attribute(K);
+                if (matchesValue(k, NAME)) {
+                    name = decode(attribute(V));
+                } else if (inWay && matchesValue(k, HIGHWAY)) {
+                    highway = decode(attribute(V));
+                }
+            } else if (changes != null && !inNode && !inWay) {
+                OsmChangeSink.Action action = action(start, end);
+                if (action != null) {
+                    deleting = action == OsmChangeSink.Action.DELETE;
+                    changes.action(action);
+                }
+            }
+        }
+        if (inNode || inWay) {
+            throw new EOFException("OSM XML ends inside an element");
+        }
+    }
+
+    /**
+     * Advances to the next tag, making sure all of it is in the buffer.
+     * @return false at the end of the input.
+     */
+    private boolean nextTag() throws IOException {
+        while (true) {
+            while (pos < limit && buf[pos] != '<') {
+                pos++;
+            }
+            if (pos < limit) {
+                break;
+            }
+            if (fill(limit) == 0) {
+                return false;
+            }
+        }
+        tagStart = pos;
+
+        boolean comment = startsWith(tagStart + 1, "!--");
+        int i = tagStart + 1; // after startsWith, which may have moved the tag
+        byte quote = 0;
+        while (true) {
+            if (i >= limit) {
+                int keep = tagStart;
+                if (fill(keep) == 0) {
+                    throw new EOFException("OSM XML ends inside a tag");
+                }
+                i -= keep;
+                continue;
+            }
+            byte b = buf[i];
+            if (comment) {
+                // comments end at "-->" and may contain quotes and '>'
+                if (b == '>' && i - tagStart >= 6 && buf[i - 1] == '-' && buf[i - 2] == '-') {
+                    break;
+                }
+            } else if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                break;
+            }
+            i++;
+        }
+        tagEnd = i;
+        pos = i + 1;
+        return true;
+    }
+
+    // true if the bytes at i, refilling the buffer if needed, are the ASCII string s
+    private boolean startsWith(int i, String s) throws IOException {
+        while (i + s.length() > limit) {
+            int keep = tagStart;
+            if (fill(keep) == 0) {
+                return false;
+            }
+            i -= keep;
+        }
+        for (int j = 0; j < s.length(); j++) {
+            if (buf[i + j] != s.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves buf[keep..limit) to the front of the buffer, growing it if it is full, and reads
+     * more input after it. Positions in the buffer move down by keep.
+     * @return The number of bytes read, 0 at the end of the input.
+     */
+    private int fill(int keep) throws IOException {
+        int kept = limit - keep;
+        if (keep == 0 && kept == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        } else if (keep > 0) {
+            System.arraycopy(buf, keep, buf, 0, kept);
+        }
+        limit = kept;
+        pos -= keep;
+        tagStart -= keep;
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n <= 0) {
+            return 0;
+        }
+        limit += n;
+        return n;
+    }
+
+    // end of the element or attribute name starting at start
+    private int nameEnd(int start) {
+        int i = start;
+        while (i < tagEnd && !isSpace(buf[i]) && buf[i] != '/' && buf[i] != '>'
+                && buf[i] != '=') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    // records the attributes of the current tag, starting after its name at i
+    private void parseAttributes(int i) throws IOException {
+        attributeCount = 0;
+        while (true) {
+            while (i < tagEnd && isSpace(buf[i])) {
+                i++;
+            }
+            if (i >= tagEnd || buf[i] == '/') {
+                return;
+            }
+            int start = i;
+            int end = nameEnd(i);
+            i = end;
+            while (i < tagEnd && isSpace(buf[i])) {
+                i++;
+            }
+            if (i >= tagEnd || buf[i] != '=') {
+                throw new IOException("malformed attribute in OSM XML tag");
+            }
+            i++;
+            while (i < tagEnd && isSpace(buf[i])) {
+                i++;
+            }
+            byte quote = buf[i];
+            if (quote != '"' && quote != '\'') {
+                throw new IOException("unquoted attribute value in OSM XML tag");
+            }
+            int valueFrom = ++i;
+            while (buf[i] != quote) {
+                i++;
+            }
+            if (attributeCount < MAX_ATTRIBUTES) {
+                nameStart[attributeCount] = start;
+                nameEnd[attributeCount] = end;
+                valueStart[attributeCount] = valueFrom;
+                valueEnd[attributeCount] = i;
+                attributeCount++;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Returns the index of the attribute called name.
+     * @throws IOException if the tag has no such attribute.
+     */
+    private int attribute(byte[] name) throws IOException {
+        int a = findAttribute(name);
+        if (a >= 0) {
+            return a;
+        }
+        throw new IOException("OSM XML tag without " + new String(name, StandardCharsets.US_ASCII)
+                + " attribute");
+    }
+
+    // returns the osmChange action named by buf[start..end), or null if it names none
+    private OsmChangeSink.Action action(int start, int end) {
+        if (matches(start, end, CREATE)) {
+            return OsmChangeSink.Action.CREATE;
+        } else if (matches(start, end, MODIFY)) {
+            return OsmChangeSink.Action.MODIFY;
+        } else if (matches(start, end, DELETE)) {
+            return OsmChangeSink.Action.DELETE;
+        }
+        return null;
+    }
+
+    // returns the index of the attribute called name, or -1 if the tag has none
+    private int findAttribute(byte[] name) {
+        for (int a = 0; a < attributeCount; a++) {
+            if (matches(nameStart[a], nameEnd[a], name)) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matchesValue(int attribute, byte[] word) {
+        return matches(valueStart[attribute], valueEnd[attribute], word);
+    }
+
+    private boolean matches(int start, int end, byte[] word) {
+        if (end - start != word.length) {
+            return false;
+        }
+        for (int j = 0; j < word.length; j++) {
+            if (buf[start + j] != word[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long parseLong(int attribute) throws IOException {
+        int i = valueStart[attribute];
+        int end = valueEnd[attribute];
+        boolean negative = i < end && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return Long.parseLong(text(attribute));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("invalid number in OSM XML: " + text(attribute));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal number. Numbers of up to 15 digits, which include all OSM coordinates,
+     * are computed as an integer divided by a power of ten. Both are exact doubles and the
+     * division is correctly rounded, so the result is the same as Double.parseDouble's.
+     */
+    private double parseDouble(int attribute) throws IOException {
+        int i = valueStart[attribute];
+        int end = valueEnd[attribute];
+        boolean negative = i < end && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b == '.' && scale < 0) {
+                scale = 0;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else {
+                break; // exponents and anything unusual
+            }
+        }
+        if (i < end || digits > 15 || scale >= POWERS_OF_TEN.length
+                || end == valueStart[attribute] + (negative ? 1 : 0)) {
+            try {
+                return Double.parseDouble(text(attribute));
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid number in OSM XML: " + text(attribute));
+            }
+        }
+        double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -value : value;
+    }
+
+    // the raw text of an attribute value
+    private String text(int attribute) {
+        return new String(buf, valueStart[attribute], valueEnd[attribute] - valueStart[attribute],
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes an attribute value as an XML parser would: UTF-8, with entity and character
+     * references replaced and literal whitespace characters normalized to spaces.
+     */
+    private String decode(int attribute) throws IOException {
+        int start = valueStart[attribute];
+        int end = valueEnd[attribute];
+        boolean plain = true;
+        for (int i = start; i < end; i++) {
+            byte b = buf[i];
+            if (b == '&' || b == '\t' || b == '\n' || b == '\r') {
+                plain = false;
+                break;
+            }
+        }
+        String s = new String(buf, start, end - start, StandardCharsets.UTF_8);
+        if (plain) {
+            return s;
+        }
+
+        StringBuilder result = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\t' || c == '\n' || c == '\r') {
+                // a CR LF pair is one line break, and so a single space
+                if (c == '\r' && i + 1 < s.length() && s.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                result.append(' ');
+            } else if (c != '&') {
+                result.append(c);
+            } else {
+                int semicolon = s.indexOf(';', i);
+                if (semicolon < 0) {
+                    throw new IOException("unterminated entity in OSM XML: " + s);
+                }
+                String entity = s.substring(i + 1, semicolon);
+                i = semicolon;
+                switch (entity) {
+                    case "amp": result.append('&'); break;
+                    case "lt": result.append('<'); break;
+                    case "gt": result.append('>'); break;
+                    case "quot": result.append('"'); break;
+                    case "apos": result.append('\''); break;
+                    default:
+                        if (!entity.startsWith("#")) {
+                            throw new IOException("unknown entity &" + entity + "; in OSM XML");
+                        }
+                        try {
+                            int codePoint = entity.startsWith("#x")
+                                    ? Integer.parseInt(entity.substring(2), 16)
+                                    : Integer.parseInt(entity.substring(1));
+                            result.appendCodePoint(codePoint);
+                        } catch (IllegalArgumentException e) {
+                            throw new IOException("invalid character reference &" + entity
+                                    + "; in OSM XML");
+                        }
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.Arrays;
+
+/**
+ * The ids of the nodes on routable ways, collected in a first pass over an OSM file so that a
+ * second pass can skip every other node, see GraphDB.Ingestion.TWO_PASS. Ways count as
+ * routable if OsmGraphBuilder would turn them into edges.
+ *
+ * The ids are kept in a sorted array without duplicates. While collecting, new ids are
+ * appended and the array is sorted and deduplicated whenever it fills up, so it never holds
+ * much more than twice the number of distinct ids.
+ */
+public class RoutableNodes implements OsmSink {
+    private long[] ids = new long[1024];
+    private int size;
+    private int sorted; // ids[0..sorted) is sorted and free of duplicates
+
+    @Override
+    public void node(long id, double lon, double lat, String name) {
+    }
+
+    @Override
+    public void way(long id, long[] refs, int count, String highway, String name) {
+        if (count < 2 || !OsmGraphBuilder.ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+            return; // no edges, so none of its nodes would be kept
+        }
+        for (int i = 0; i < count; i++) {
+            if (size == ids.length) {
+                compact();
+                if (size >= ids.length / 2) {
+                    ids = Arrays.copyOf(ids, Math.max(1024, ids.length * 2));
+                }
+            }
+            ids[size++] = refs[i];
+        }
+    }
+
+    // sorts the ids and drops duplicates
+    private void compact() {
+        if (sorted == size) {
+            return;
+        }
+        Arrays.sort(ids, 0, size);
+        int write = 0;
+        for (int i = 0; i < size; i++) {
+            if (write == 0 || ids[i] != ids[write - 1]) {
+                ids[write++] = ids[i];
+            }
+        }
+        size = write;
+        sorted = write;
+    }
+
+    /**
+     * Returns whether id is on a routable way. Call this only once all ways have been seen.
+     */
+    public boolean contains(long id) {
+        compact();
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    /** Returns the number of distinct ids collected so far. */
+    public int size() {
+        compact();
+        return size;
+    }
+
+    /** Releases the unused part of the array once all ways have been seen. */
+    void trim() {
+        compact();
+        ids = Arrays.copyOf(ids, size);
+    }
+}
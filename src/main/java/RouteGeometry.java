@@ -0,0 +1,181 @@
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The polyline of a route, with the coordinates of its vertices taken from the graph when the
+ * route was found, so drawing it needs no graph lookups and is unaffected by later versions of
+ * the graph.
+ *
+ * Routes are drawn onto rasters of a fixed scale per depth. For each depth the polyline is
+ * projected to pixels and simplified once with Douglas-Peucker, dropping vertices that move
+ * the line by less than half a pixel; at shallow depths that leaves a handful of the
+ * thousands of vertices of a long route. Drawing then only walks the simplified polyline,
+ * and only segments reaching into the raster are added to the path.
+ */
+public class RouteGeometry {
+    /** Simplified polylines stray at most this many pixels from the route. */
+    static final double TOLERANCE_PX = 0.5;
+
+    private final double[] lons;
+    private final double[] lats;
+    private final ConcurrentHashMap<Integer, Projected> byDepth = new ConcurrentHashMap<>();
+
+    /** A simplified polyline in pixels of one depth, measured from lon 0, lat 0. */
+    private static final class Projected {
+        final double[] xs;
+        final double[] ys;
+
+        Projected(double[] xs, double[] ys) {
+            this.xs = xs;
+            this.ys = ys;
+        }
+    }
+
+    /** Takes the coordinates of the vertices of route from graph. */
+    public RouteGeometry(GraphDB graph, List<Long> route) {
+        lons = new double[route.size()];
+        lats = new double[route.size()];
+        int i = 0;
+        for (long v : route) {
+            lons[i] = graph.lon(v);
+            lats[i] = graph.lat(v);
+            i++;
+        }
+    }
+
+    RouteGeometry(double[] lons, double[] lats) {
+        this.lons = lons;
+        this.lats = lats;
+    }
+
+    /** Returns the number of vertices of the route. */
+    public int size() {
+        return lons.length;
+    }
+
+    /**
+     * Returns the [lon, lat] pairs of the vertices of the route, in order, as in the
+     * coordinates of a GeoJSON LineString.
+     */
+    public double[][] coordinates() {
+        double[][] coordinates = new double[lons.length][];
+        for (int i = 0; i < lons.length; i++) {
+            coordinates[i] = new double[] {lons[i], lats[i]};
+        }
+        return coordinates;
+    }
+
+    /**
+     * Returns the route as a path in the pixels of a raster of the given depth, with its upper
+     * left corner at ullon, ullat and the given degrees per pixel. Only segments coming within
+     * margin pixels of the width by height raster are included.
+     */
+    public Path2D path(int depth, double ullon, double ullat, double wdpp, double hdpp,
+                       double width, double height, double margin) {
+        Projected p = byDepth.computeIfAbsent(depth, d -> project(wdpp, hdpp));
+        double x0 = ullon / wdpp;
+        double y0 = -ullat / hdpp;
+        double minX = x0 - margin;
+        double minY = y0 - margin;
+        double maxX = x0 + width + margin;
+        double maxY = y0 + height + margin;
+        Path2D path = new Path2D.Double();
+        boolean connected = false; // whether the path ends at vertex i - 1
+        for (int i = 1; i < p.xs.length; i++) {
+            double ax = p.xs[i - 1];
+            double ay = p.ys[i - 1];
+            double bx = p.xs[i];
+            double by = p.ys[i];
+            if (Math.max(ax, bx) < minX || Math.min(ax, bx) > maxX
+                    || Math.max(ay, by) < minY || Math.min(ay, by) > maxY) {
+                connected = false;
+                continue;
+            }
+            if (!connected) {
+                path.moveTo(ax - x0, ay - y0);
+            }
+            path.lineTo(bx - x0, by - y0);
+            connected = true;
+        }
+        return path;
+    }
+
+    // projects the route to pixels of wdpp by hdpp degrees and simplifies it
+    private Projected project(double wdpp, double hdpp) {
+        int n = lons.length;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = lons[i] / wdpp;
+            ys[i] = -lats[i] / hdpp;
+        }
+        boolean[] keep = simplify(xs, ys, TOLERANCE_PX);
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                xs[kept] = xs[i];
+                ys[kept] = ys[i];
+                kept++;
+            }
+        }
+        return new Projected(Arrays.copyOf(xs, kept),
+                Arrays.copyOf(ys, kept));
+    }
+
+    /**
+     * Marks the points of the polyline xs, ys that Douglas-Peucker keeps for the given
+     * tolerance: the ends, and recursively the point farthest from the segment between two kept
+     * points while it is farther than tolerance. Uses a stack rather than recursion, as long
+     * routes would nest deeply.
+     */
+    static boolean[] simplify(double[] xs, double[] ys, double tolerance) {
+        int n = xs.length;
+        boolean[] keep = new boolean[n];
+        if (n == 0) {
+            return keep;
+        }
+        keep[0] = true;
+        keep[n - 1] = true;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        double tolerance2 = tolerance * tolerance;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double dx = xs[last] - xs[first];
+            double dy = ys[last] - ys[first];
+            double length2 = dx * dx + dy * dy;
+            double farthest2 = tolerance2;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double ex = xs[i] - xs[first];
+                double ey = ys[i] - ys[first];
+                // squared distance to the segment, so that routes doubling back are kept
+                double t = length2 == 0 ? 0 : (ex * dx + ey * dy) / length2;
+                t = Math.max(0, Math.min(1, t));
+                double fx = ex - t * dx;
+                double fy = ey - t * dy;
+                double d2 = fx * fx + fy * fy;
+                if (d2 > farthest2) {
+                    farthest2 = d2;
+                    index = i;
+                }
+            }
+            if (index >= 0) {
+                keep[index] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = first;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+        return keep;
+    }
+}
@@ -1,6 +1,4 @@
 
-import javax.naming.NamingException;
-import java.awt.image.Raster;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -10,69 +8,25 @@ import java.util.regex.Pattern;
  * on the map.
  */
 public class Router {
-    private static GraphDB graph;
-    private static long s;
-    private static long t;
-    private class priorityComparator implements Comparator<nodePrioirity> {
-        @Override
-        public int compare(nodePrioirity node1, nodePrioirity node2) {
-            double priority1 = node1.priorityValue();
-            double priority2 = node2.priorityValue();
 
-            return Double.compare(priority1, priority2);
-        }
+    /** The search algorithms a route can be computed with. */
+    public enum Algorithm {
+        /** Unidirectional A* with the great-circle distance to the target as heuristic. */
+        ASTAR,
+        /**
+         * A* from both ends at once, guided by the average of the forward and backward
+         * great-circle heuristics.
+         */
+        BIDIRECTIONAL_ASTAR,
+        /**
+         * A* whose heuristic also uses triangle-inequality bounds from precomputed landmark
+         * distance tables (ALT).
+         */
+        ALT,
+        /** Bidirectional upward search over the graph's contraction hierarchy. */
+        CONTRACTION_HIERARCHY
     }
 
-    private class nodePrioirity implements Comparable<nodePrioirity> {
-        private long id;
-        double currentDistance; // distance from the starting node
-        private double priority; // priority value summation of current distance and heuristic
-        nodePrioirity parent;
-
-
-        nodePrioirity(long currentNodeId, double distance, nodePrioirity previous) {
-            this.id = currentNodeId;
-            this.currentDistance = distance;
-            this.priority = priorityValue();
-            this.parent = previous;
-        }
-
-        @Override
-        public int compareTo(nodePrioirity other) {
-            return Double.compare(this.priority, other.priority);
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
-            }
-
-            nodePrioirity node1 = (nodePrioirity) o;
-
-            // returns true if latitudes and longitudes are the same for both nodes
-            return graph.lat(this.id) == graph.lat(node1.id) && graph.lon(this.id) == graph.lon(node1.id);
-        }
-
-        @Override
-        public int hashCode() {
-            int result = 17;
-            long latBits = Double.doubleToLongBits(graph.lat(this.id));
-            long lonBits = Double.doubleToLongBits(graph.lon(this.id));
-            result = 31 * result + (int) (latBits ^ (latBits >>> 32));
-            result = 31 * result + (int) (lonBits ^ (lonBits >>> 32));
-            return result;
-        }
-
-
-        // returns value of current distance from source + distance(currentNode, target)
-        private  double priorityValue() {
-            return currentDistance + graph.distance(id,t);
-        }
-    }
     /**
      * Return a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination
@@ -86,81 +40,261 @@ public class Router {
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        graph = g;
-        s = g.closest(stlon, stlat);
-        t = g.closest(destlon, destlat);
+        return shortestPath(g, stlon, stlat, destlon, destlat, Algorithm.ASTAR);
+    }
+
+    /**
+     * Like shortestPath(g, stlon, stlat, destlon, destlat), computing the route with the
+     * given algorithm. Every algorithm finds a shortest path; they differ in preprocessing
+     * and in how many vertices a query settles.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Algorithm algorithm) {
+        long s = g.closest(stlon, stlat);
+        long t = g.closest(destlon, destlat);
 
-        // creates a router object that runs astar and returns a list of coordinates between points. returns empty list if not found
-        Router router = new Router();
-        return router.Astar(s, t, g);
+        // creates a query that runs the search and returns a list of coordinates between points. returns empty list if not found
+        Query query = new Query(g, s, t, algorithm);
+        return query.run();
     }
 
-        private List<Long> Astar(long source, long goal, GraphDB g) {
-            priorityComparator comparator = new priorityComparator();
-            PriorityQueue<nodePrioirity> fringe = new PriorityQueue<>(comparator);
-            Map<Long, Double> best = new HashMap<>();
+    /**
+     * A single shortest-path request: the graph, its endpoints and the state of its search.
+     * Queries share nothing with each other except the per-thread SearchSpace they borrow while
+     * running, so any number of them can run concurrently on different threads.
+     */
+    public static class Query {
+        private final GraphDB graph;
+        private final long source;
+        private final long target;
+        private final Algorithm algorithm;
+        private int settled;
+
+        /**
+         * @param g The graph to search.
+         * @param source The id of the vertex to start from.
+         * @param target The id of the vertex to find a path to.
+         * @param algorithm The search algorithm to use.
+         */
+        public Query(GraphDB g, long source, long target, Algorithm algorithm) {
+            this.graph = g;
+            this.source = source;
+            this.target = target;
+            this.algorithm = algorithm;
+        }
+
+        public long source() {
+            return source;
+        }
+
+        public long target() {
+            return target;
+        }
+
+        /** Number of vertices settled by the last run of this query. */
+        public int settledCount() {
+            return settled;
+        }
 
-            // set current best distances to infinity
-            for (long id : g.vertices()) {
-                best.put(id, Double.MAX_VALUE);
+        /**
+         * Runs the search.
+         * @return The ids of the vertices on a shortest path from source to target, or an
+         * empty list if the target cannot be reached.
+         */
+        public List<Long> run() {
+            SearchSpace space = SearchSpace.forThread(graph.size());
+            switch (algorithm) {
+                case BIDIRECTIONAL_ASTAR:
+                    return bidirectionalAstar(space, space.reverse());
+                case ALT:
+                    return Astar(space, graph.landmarks());
+                case CONTRACTION_HIERARCHY:
+                    return contractionHierarchy(space, space.reverse());
+                default:
+                    return Astar(space, null);
             }
-            List<Long> solution = new ArrayList<>();
+        }
 
-            Map<Long, Long> previous = new HashMap<>(); // Keep track of parents
+        /**
+         * A* search from source to target using the great-circle distance to the target as
+         * the heuristic, raised to the landmark lower bound when landmarks are given. Runs over
+         * the graph's dense vertex indices, so a search only allocates the returned path.
+         */
+        private List<Long> Astar(SearchSpace space, Landmarks landmarks) {
+            GraphDB g = graph;
+            int s = g.indexOf(source);
+            int t = g.indexOf(target);
+            double[] landmarksToTarget = landmarks == null ? null : landmarks.distancesTo(t);
+            IndexedMinHeap fringe = space.fringe;
+            space.begin();
 
             // Step 1: Add the source to the fringe
-            nodePrioirity node = new nodePrioirity(source, 0, null);
-            fringe.add(node);
+            space.reach(s, 0, -1);
+            fringe.insertOrDecrease(s, heuristic(s, t, landmarks, landmarksToTarget));
 
             while (!fringe.isEmpty()) {
                 // Step 2: Dequeue the closest vertex from the fringe
-                nodePrioirity v = fringe.poll();
+                int v = fringe.pollMin();
 
                 // Step 3: Check if v is the goal
-                if (v.id == goal) {
-                    // Goal reached, reconstruct the path and return the edges
-                    while(v.parent != null) {
-                        solution.add(v.id);
-                        v = v.parent;
-                    }
-                    // adding the first node
-                    solution.add(v.id);
-                    // reversing the order of the list solution
-                    Collections.reverse(solution);
-                    return  solution;
+                if (v == t) {
+                    settled = space.settledCount();
+                    return pathTo(t, space);
                 }
+                space.settle(v);
 
                 // Step 4: Relax each edge v -> w
-                for (long w : g.adjacent(v.id)) {
-
-                    double newDistance = distanceToVertex(v, w, g);
-
-                    if (newDistance < best.get(w)) {
-                        // Update best with the new distance
-                        best.put(w, newDistance);
-                        // Update previous map to track the previous vertex
-                        previous.put(w, v.id);
-
+                double sToV = space.distance(v);
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    int w = g.edgeTarget(e);
+                    if (space.isSettled(w)) {
+                        continue;
+                    }
+                    double newDistance = sToV + g.distanceAt(v, w);
+                    if (newDistance < space.distance(w)) {
                         // Add w to the fringe with priority d(s, v) + ed(v, w) + h(w)
-                       // double priority = newDistance + heuristic(w);  h(w) is the heuristic function
-                        // create new node with  updated distance and priorities and add to fringe
-                        nodePrioirity nodeW = new nodePrioirity(w,newDistance, v);
-                        fringe.add(nodeW);
+                        space.reach(w, newDistance, v);
+                        fringe.insertOrDecrease(w,
+                                newDistance + heuristic(w, t, landmarks, landmarksToTarget));
                     }
                 }
             }
 
             // No path found
+            settled = space.settledCount();
             return Collections.emptyList();
         }
 
-    private double distanceToVertex(nodePrioirity oldNode, long newNode, GraphDB g) {
-            double sToOld = oldNode.currentDistance; // source to old vertex
-            double oldToNew = g.distance(oldNode.id, newNode); // old vertex to new vertex
+        // lower bound on the road distance from v to t
+        private double heuristic(int v, int t, Landmarks landmarks, double[] landmarksToTarget) {
+            double straightLine = graph.distanceAt(v, t);
+            if (landmarks == null) {
+                return straightLine;
+            }
+            return Math.max(straightLine, landmarks.lowerBound(v, landmarksToTarget));
+        }
 
-            return sToOld + oldToNew;
+        /**
+         * Bidirectional A* with the symmetric potential p(v) = (h_t(v) - h_s(v)) / 2, where
+         * h_t and h_s are the great-circle distances to the target and source. The forward
+         * search orders its fringe by d_s(v) + p(v) and the backward one by d_t(v) - p(v); with
+         * this pair of potentials both searches see the same non-negative reduced edge lengths,
+         * so the search can stop as soon as the two smallest keys add up to the best path found.
+         * Roads are two-way, so the backward search walks the same adjacency lists.
+         */
+        private List<Long> bidirectionalAstar(SearchSpace forward, SearchSpace backward) {
+            GraphDB g = graph;
+            int s = g.indexOf(source);
+            int t = g.indexOf(target);
+            forward.begin();
+            backward.begin();
+
+            forward.reach(s, 0, -1);
+            forward.fringe.insertOrDecrease(s, potential(s, s, t));
+            backward.reach(t, 0, -1);
+            backward.fringe.insertOrDecrease(t, -potential(t, s, t));
+
+            // the best path found so far runs s .. meetFrom, meetTo .. t
+            double best = s == t ? 0 : Double.POSITIVE_INFINITY;
+            int meetFrom = s;
+            int meetTo = t;
+            while (!forward.fringe.isEmpty() && !backward.fringe.isEmpty()
+                    && forward.fringe.minKey() + backward.fringe.minKey() < best) {
+                boolean useForward = forward.fringe.size() <= backward.fringe.size();
+                SearchSpace space = useForward ? forward : backward;
+                SearchSpace other = useForward ? backward : forward;
+                double sign = useForward ? 1 : -1;
+
+                int v = space.fringe.pollMin();
+                space.settle(v);
+                double dv = space.distance(v);
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    int w = g.edgeTarget(e);
+                    if (space.isSettled(w)) {
+                        continue;
+                    }
+                    double newDistance = dv + g.distanceAt(v, w);
+                    if (newDistance < space.distance(w)) {
+                        space.reach(w, newDistance, v);
+                        space.fringe.insertOrDecrease(w,
+                                newDistance + sign * potential(w, s, t));
+                    }
+                    if (other.isReached(w) && newDistance + other.distance(w) < best) {
+                        best = newDistance + other.distance(w);
+                        meetFrom = useForward ? v : w;
+                        meetTo = useForward ? w : v;
+                    }
+                }
+            }
+            settled = forward.settledCount() + backward.settledCount();
+            if (best == Double.POSITIVE_INFINITY) {
+                return Collections.emptyList();
+            }
+
+            int forwardLength = 0;
+            for (int v = meetFrom; v != -1; v = forward.parent(v)) {
+                forwardLength += 1;
+            }
+            int backwardLength = 0;
+            if (meetFrom != meetTo) {
+                for (int v = meetTo; v != -1; v = backward.parent(v)) {
+                    backwardLength += 1;
+                }
+            }
+            int[] path = new int[forwardLength + backwardLength];
+            int i = forwardLength;
+            for (int v = meetFrom; v != -1; v = forward.parent(v)) {
+                path[--i] = v;
+            }
+            i = forwardLength;
+            for (int v = meetTo; i < path.length; v = backward.parent(v)) {
+                path[i++] = v;
+            }
+            return toIds(path);
         }
 
+        // the forward potential of vertex v for a search between s and t
+        private double potential(int v, int s, int t) {
+            return (graph.distanceAt(v, t) - graph.distanceAt(v, s)) / 2;
+        }
+
+        /**
+         * Queries the graph's contraction hierarchy, which is built on first use.
+         */
+        private List<Long> contractionHierarchy(SearchSpace forward, SearchSpace backward) {
+            ContractionHierarchy hierarchy = graph.contractionHierarchy();
+            int[] path = hierarchy.shortestPath(graph.indexOf(source), graph.indexOf(target),
+                    forward, backward);
+            settled = forward.settledCount() + backward.settledCount();
+            return toIds(path);
+        }
+
+        // converts a path of vertex indices to OSM ids, or to an empty list if there is none
+        private List<Long> toIds(int[] path) {
+            if (path == null) {
+                return Collections.emptyList();
+            }
+            Long[] ids = new Long[path.length];
+            for (int i = 0; i < path.length; i++) {
+                ids[i] = graph.idAt(path[i]);
+            }
+            return Arrays.asList(ids);
+        }
+
+        // follows parent pointers back from t and returns the path as OSM ids, source first
+        private List<Long> pathTo(int t, SearchSpace space) {
+            int length = 0;
+            for (int v = t; v != -1; v = space.parent(v)) {
+                length += 1;
+            }
+            Long[] path = new Long[length];
+            for (int v = t; v != -1; v = space.parent(v)) {
+                path[--length] = graph.idAt(v);
+            }
+            return Arrays.asList(path);
+        }
+    }
+
     /**
      * Create the list of directions corresponding to a route on the graph.
      * @param g The graph to use.
@@ -0,0 +1,88 @@
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the Router's search algorithms on random queries over a map: preprocessing time,
+ * average query time and settled vertices per query, and whether every algorithm finds a
+ * path of the same length as plain A*.
+ * Usage: java RouterBenchmark [osm file] [number of queries] [heap|mapped]
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int DEFAULT_QUERIES = 1000;
+    /** Two path lengths closer than this many miles are considered equal. */
+    private static final double LENGTH_EPSILON = 1e-9;
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        GraphDB.Storage storage = args.length > 2
+                ? GraphDB.Storage.valueOf(args[2].toUpperCase(Locale.ROOT)) : GraphDB.Storage.HEAP;
+
+        long start = System.nanoTime();
+        GraphDB g = new GraphDB(path, storage);
+        System.out.printf("Loaded %d vertices from %s in %.0f ms (%s)%n",
+                g.size(), path, millisSince(start), storage);
+
+        start = System.nanoTime();
+        ContractionHierarchy hierarchy = new ContractionHierarchy(g);
+        System.out.printf("Contraction hierarchy: %.0f ms, %d shortcuts%n",
+                millisSince(start), hierarchy.shortcutCount());
+
+        start = System.nanoTime();
+        Landmarks landmarks = new Landmarks(g, Landmarks.DEFAULT_COUNT);
+        System.out.printf("Landmarks: %.0f ms for %d, %d KB per landmark%n",
+                millisSince(start), landmarks.count(), landmarks.bytesPerLandmark() / 1024);
+        g.landmarks(); // the tables ALT queries use, loaded from disk if already saved
+        g.contractionHierarchy(); // likewise for the hierarchy CH queries use
+
+        Random random = new Random(61);
+        long[][] queries = new long[numQueries][2];
+        for (long[] query : queries) {
+            query[0] = g.idAt(random.nextInt(g.size()));
+            query[1] = g.idAt(random.nextInt(g.size()));
+        }
+
+        double[] baseline = null;
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            double[] lengths = new double[numQueries];
+            long settled = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < numQueries; i++) {
+                Router.Query query = new Router.Query(g, queries[i][0], queries[i][1], algorithm);
+                lengths[i] = length(g, query.run());
+                settled += query.settledCount();
+            }
+            double millis = millisSince(start);
+
+            int mismatches = 0;
+            if (baseline == null) {
+                baseline = lengths;
+            }
+            for (int i = 0; i < numQueries; i++) {
+                if (Math.abs(lengths[i] - baseline[i]) > LENGTH_EPSILON) {
+                    mismatches += 1;
+                }
+            }
+            System.out.printf("%-22s %8.3f ms/query %9d settled/query %d length mismatches%n",
+                    algorithm, millis / numQueries, settled / numQueries, mismatches);
+        }
+    }
+
+    // total great-circle length of a path in miles, or -1 for no path
+    private static double length(GraphDB g, List<Long> path) {
+        if (path.isEmpty()) {
+            return -1;
+        }
+        double total = 0;
+        for (int i = 1; i < path.size(); i++) {
+            total += g.distance(path.get(i - 1), path.get(i));
+        }
+        return total;
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+/**
+ * Reusable per-thread state for one shortest-path search over a graph with dense vertex
+ * indices: tentative distances, parent pointers, settled marks and the fringe.
+ * Instead of clearing the arrays for every search, each entry is stamped with the epoch of
+ * the search that wrote it, so starting a new search is O(1) and a search only touches the
+ * vertices it reaches.
+ */
+public class SearchSpace {
+    private static final ThreadLocal<SearchSpace> PER_THREAD = new ThreadLocal<>();
+
+    private final double[] distance;
+    private final int[] parent;
+    private final int[] reached;  // epoch in which distance/parent were last written
+    private final int[] settled;  // epoch in which the vertex was settled
+    private int epoch;
+    private int settledCount;
+    private SearchSpace reverse;
+
+    final IndexedMinHeap fringe;
+
+    public SearchSpace(int capacity) {
+        distance = new double[capacity];
+        parent = new int[capacity];
+        reached = new int[capacity];
+        settled = new int[capacity];
+        fringe = new IndexedMinHeap(capacity);
+    }
+
+    /**
+     * Returns this thread's search space, reallocating it if it cannot hold size vertices.
+     */
+    public static SearchSpace forThread(int size) {
+        SearchSpace space = PER_THREAD.get();
+        if (space == null || space.capacity() < size) {
+            space = new SearchSpace(size);
+            PER_THREAD.set(space);
+        }
+        return space;
+    }
+
+    public int capacity() {
+        return distance.length;
+    }
+
+    /**
+     * Returns a second search space owned by this one, for the backward half of a
+     * bidirectional search.
+     */
+    public SearchSpace reverse() {
+        if (reverse == null) {
+            reverse = new SearchSpace(capacity());
+        }
+        return reverse;
+    }
+
+    /** Forgets the previous search. */
+    public void begin() {
+        fringe.clear();
+        settledCount = 0;
+        epoch += 1;
+        if (epoch == Integer.MAX_VALUE) {
+            // stamps are about to wrap around, so really clear them once
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            epoch = 1;
+        }
+    }
+
+    /** Returns the best known distance to v, or infinity if v has not been reached. */
+    public double distance(int v) {
+        return reached[v] == epoch ? distance[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Returns the vertex v was reached from, or -1 for the source or unreached vertices. */
+    public int parent(int v) {
+        return reached[v] == epoch ? parent[v] : -1;
+    }
+
+    public boolean isReached(int v) {
+        return reached[v] == epoch;
+    }
+
+    /** Records that v can be reached with the given distance through from. */
+    public void reach(int v, double dist, int from) {
+        reached[v] = epoch;
+        distance[v] = dist;
+        parent[v] = from;
+    }
+
+    public boolean isSettled(int v) {
+        return settled[v] == epoch;
+    }
+
+    public void settle(int v) {
+        settled[v] = epoch;
+        settledCount += 1;
+    }
+
+    /** Number of vertices settled since the search began. */
+    public int settledCount() {
+        return settledCount;
+    }
+}
@@ -1,54 +1,283 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Autocomplete index over location names. Each name is inserted under a key, its normalized
+ * form (see GraphDB.normalize), while the map is parsed, once per location, and build() then
+ * packs the distinct names into a compact Patricia trie over their keys: the names sorted by
+ * key in one array, and for each trie node the range of names below it, its children and its
+ * TOP_K most popular names. A name is as popular as the number of locations bearing it, and
+ * ties go to the first by key. Queries are matched against the keys and answered with the
+ * names, so differently written names sharing a key are found together.
+ *
+ * Since the names below a node are a contiguous range of the sorted array, the names with a
+ * prefix are found by binary search, and the node owning exactly that range holds their top
+ * names, so a query costs O(|prefix| log n + limit) however many names match. Limits above
+ * TOP_K fall back to ranking the whole range.
+ */
 public class Trie {
-    private TrieNode root;
-    public Trie() {
-        root = new TrieNode();
+    /** The number of best names kept per node. */
+    static final int TOP_K = 16;
+
+    private Map<String, Integer> counts = new HashMap<>(); // by name
+    private Map<String, String> keyOf = new HashMap<>(); // by name
+
+    /* The packed trie. Node 0 is the root and the children of each node are consecutive
+     * nodes, in the order of their keys. */
+    private String[] keys = new String[0]; // sorted, with names[i] under keys[i]
+    private String[] names = new String[0];
+    private int[] scores = new int[0]; // popularity of each name
+    private int[] nodeLo = {0}; // names[nodeLo[n]..nodeHi[n]) are below node n
+    private int[] nodeHi = {0};
+    private int[] childStart = {1}; // children of n are childStart[n]..childStart[n + 1]
+    private int[] topStart = {0, 0}; // best names of n are top[topStart[n]..topStart[n + 1])
+    private int[] top = new int[0]; // indices into names, best first
+
+    /** Adds one location named name, to be found by key. */
+    public void insert(String key, String name) {
+        counts.merge(name, 1, Integer::sum);
+        keyOf.put(name, key);
+    }
+
+    /**
+     * Packs the inserted names into the trie. Names inserted afterwards are kept for the next
+     * build; until then they are not found.
+     */
+    public void build() {
+        names = counts.keySet().toArray(new String[0]);
+        Arrays.sort(names, (a, b) -> {
+            int c = keyOf.get(a).compareTo(keyOf.get(b));
+            return c != 0 ? c : a.compareTo(b);
+        });
+        keys = new String[names.length];
+        scores = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = keyOf.get(names[i]);
+            scores[i] = counts.get(names[i]);
+        }
+        Builder b = new Builder();
+        b.build();
+        nodeLo = Arrays.copyOf(b.lo, b.nodes);
+        nodeHi = Arrays.copyOf(b.hi, b.nodes);
+        childStart = Arrays.copyOf(b.childStart, b.nodes + 1);
+        childStart[b.nodes] = b.nodes;
+        topStart = Arrays.copyOf(b.topStart, b.nodes + 1);
+        top = Arrays.copyOf(b.top, b.topUsed);
+        topStart[b.nodes] = b.topUsed;
     }
 
+    /** Returns every name whose key starts with prefix, most popular first. */
     public List<String> findByPrefix(String prefix) {
+        return findByPrefix(prefix, Integer.MAX_VALUE);
+    }
+
+    /** Returns the names whose key is key, in key order. */
+    public List<String> findByKey(String key) {
         List<String> result = new ArrayList<>();
+        for (int i = lowerBound(key); i < keys.length && keys[i].equals(key); i++) {
+            result.add(names[i]);
+        }
+        return result;
+    }
 
-        TrieNode currentNode = root;
-        // iterate through Trie to see any matching
-        for (int i = 0; i < prefix.length(); i++) {
-            char ch = prefix.charAt(i);
-            TrieNode childNode = currentNode.getChild(ch);
-            if (childNode == null) {
-                return result; // No matching prefix found
+    /**
+     * Returns the limit most popular names whose key starts with prefix, most popular first.
+     */
+    public List<String> findByPrefix(String prefix, int limit) {
+        int lo = lowerBound(prefix);
+        int hi = upperBound(prefix, lo);
+        if (lo == hi || limit <= 0) {
+            return new ArrayList<>();
+        }
+        int node = 0;
+        while (nodeLo[node] != lo || nodeHi[node] != hi) {
+            node = childContaining(node, lo);
+        }
+        List<String> result = new ArrayList<>(Math.min(limit, hi - lo));
+        int count = topStart[node + 1] - topStart[node];
+        if (limit <= count || count == hi - lo) {
+            for (int i = topStart[node]; i < topStart[node + 1] && result.size() < limit; i++) {
+                result.add(names[top[i]]);
             }
-            currentNode = childNode;
+            return result;
+        }
+        // more than TOP_K wanted: rank the whole range
+        Integer[] order = new Integer[hi - lo];
+        for (int i = lo; i < hi; i++) {
+            order[i - lo] = i;
+        }
+        Arrays.sort(order, (a, b) -> scores[a] != scores[b]
+                ? Integer.compare(scores[b], scores[a]) : Integer.compare(a, b));
+        for (int i = 0; i < order.length && result.size() < limit; i++) {
+            result.add(names[order[i]]);
         }
-        collectWords(currentNode, result);
         return result;
     }
 
-    private void collectWords(TrieNode node, List<String> result) {
-        if (node.isEndOfWord()) {
-            result.addAll(node.getWords());
+    /** Returns the number of names whose key starts with prefix. */
+    public int count(String prefix) {
+        int lo = lowerBound(prefix);
+        return upperBound(prefix, lo) - lo;
+    }
+
+    /** Returns the number of distinct names in the trie. */
+    public int size() {
+        return names.length;
+    }
+
+    // the child of node whose range holds name index i
+    private int childContaining(int node, int i) {
+        int lo = childStart[node];
+        int hi = childStart[node + 1] - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (nodeLo[mid] <= i) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
         }
-        // It then recursively calls collectWords() on each non-null child node to collect words from the child nodes
-        for (TrieNode child : node.getChildren()) {
-            if (child != null) {
-                collectWords(child, result);
+        return lo;
+    }
+
+    // the first name whose key is not less than prefix
+    private int lowerBound(String prefix) {
+        int lo = 0;
+        int hi = names.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
         }
+        return lo;
     }
-    public void insert(String word) {
 
-        TrieNode currentNode = root;
-        for (int i = 0; i < word.length(); i++) {
-            char ch = word.charAt(i);
-            TrieNode childNode = currentNode.getChild(ch);
-            if (childNode == null) {
-                childNode = new TrieNode();
-                currentNode.setChild(ch, childNode);
+    // the first name from lo on whose key does not start with prefix
+    private int upperBound(String prefix, int lo) {
+        int hi = names.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
-            currentNode = childNode;
         }
-        currentNode.setEndOfWord(true);
-        currentNode.addWord(word);
+        return lo;
+    }
+
+    /** Lays out the nodes breadth first, so the children of each node are consecutive. */
+    private final class Builder {
+        int[] lo = new int[16];
+        int[] hi = new int[16];
+        int[] depth = new int[16]; // length of the common prefix of the node's keys
+        int[] childStart = new int[16];
+        int[] topStart = new int[16];
+        int[] top = new int[64];
+        int nodes;
+        int topUsed;
+
+        void build() {
+            if (names.length == 0) {
+                add(0, 0, 0);
+                childStart[0] = 1;
+                topStart[0] = 0;
+                return;
+            }
+            add(0, names.length, commonPrefix(0, names.length));
+            for (int n = 0; n < nodes; n++) {
+                childStart[n] = nodes;
+                int d = depth[n];
+                int i = ownEnd(n);
+                while (i < hi[n]) {
+                    // the names sharing the next character after the prefix form a child
+                    char c = keys[i].charAt(d);
+                    int j = i + 1;
+                    while (j < hi[n] && keys[j].charAt(d) == c) {
+                        j++;
+                    }
+                    add(i, j, commonPrefix(i, j));
+                    i = j;
+                }
+            }
+            // children come after their parents, so going backwards they are ranked first
+            int[][] best = new int[nodes][];
+            for (int n = nodes - 1; n >= 0; n--) {
+                best[n] = rank(n, best);
+            }
+            for (int n = 0; n < nodes; n++) {
+                topStart[n] = topUsed;
+                if (topUsed + best[n].length > top.length) {
+                    top = Arrays.copyOf(top, Math.max(top.length * 2, topUsed + best[n].length));
+                }
+                System.arraycopy(best[n], 0, top, topUsed, best[n].length);
+                topUsed += best[n].length;
+            }
+        }
+
+        // the end of the names whose key ends at node n, which come first in its range
+        private int ownEnd(int n) {
+            int i = lo[n];
+            while (i < hi[n] && keys[i].length() == depth[n]) {
+                i++;
+            }
+            return i;
+        }
 
+        // merges the best names of the children of n with its own names
+        private int[] rank(int n, int[][] best) {
+            List<Integer> candidates = new ArrayList<>();
+            for (int i = lo[n]; i < ownEnd(n); i++) {
+                candidates.add(i);
+            }
+            int end = n + 1 < nodes ? childStart[n + 1] : nodes;
+            for (int c = childStart[n]; c < end; c++) {
+                for (int i : best[c]) {
+                    candidates.add(i);
+                }
+            }
+            Collections.sort(candidates, (a, b) -> scores[a] != scores[b]
+                    ? Integer.compare(scores[b], scores[a]) : Integer.compare(a, b));
+            int k = Math.min(TOP_K, candidates.size());
+            int[] result = new int[k];
+            for (int i = 0; i < k; i++) {
+                result[i] = candidates.get(i);
+            }
+            return result;
+        }
+
+        private void add(int from, int to, int d) {
+            if (nodes == lo.length) {
+                int capacity = nodes * 2;
+                lo = Arrays.copyOf(lo, capacity);
+                hi = Arrays.copyOf(hi, capacity);
+                depth = Arrays.copyOf(depth, capacity);
+                childStart = Arrays.copyOf(childStart, capacity + 1);
+                topStart = Arrays.copyOf(topStart, capacity + 1);
+            }
+            lo[nodes] = from;
+            hi[nodes] = to;
+            depth[nodes] = d;
+            nodes++;
+        }
+
+        // the length of the prefix shared by keys[from..to), which are sorted
+        private int commonPrefix(int from, int to) {
+            String a = keys[from];
+            String b = keys[to - 1];
+            int n = Math.min(a.length(), b.length());
+            int i = 0;
+            while (i < n && a.charAt(i) == b.charAt(i)) {
+                i++;
+            }
+            return i;
+        }
     }
-}
\ No newline at end of file
+}
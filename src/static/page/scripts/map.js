@@ -18,7 +18,8 @@ $(function() {
         lrlat: 37.83,
         lrlon: -122.22,
         w: $body.width(),
-        h: $body.height()
+        h: $body.height(),
+        draw_route: false // the route is drawn on the route layer instead
     };
     const SAFE_WIDTH = 1120;
     const SAFE_HEIGHT = 800;
@@ -26,6 +27,8 @@ $(function() {
     var getInProgress = false;
     var route_params = {};
     var map;
+    var routeLayer;
+    var routeCoordinates = [];
     var dest;
     var tx = 0, ty = 0;
     var rtx, rty;
@@ -130,6 +133,7 @@ $(function() {
                     rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
                     rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
                     updateMarkers();
+                    drawRoute();
                     getInProgress = false;
                     if (successCallback) {
                         successCallback();
@@ -149,8 +153,35 @@ $(function() {
         });
     }
 
+    /* Draws the route over the raster on a canvas of the raster's size, so that moving the
+       map moves both together and a new route needs no new raster. */
+    function drawRoute() {
+        routeLayer.width = img_w; // also clears the canvas
+        routeLayer.height = img_h;
+        if (routeCoordinates.length < 2) {
+            return;
+        }
+        const ctx = routeLayer.getContext('2d');
+        ctx.strokeStyle = 'rgba(108, 181, 230, 0.78)';
+        ctx.lineWidth = 5;
+        ctx.lineCap = 'round';
+        ctx.lineJoin = 'round';
+        ctx.beginPath();
+        for (var i = 0; i < routeCoordinates.length; i++) {
+            const x = (routeCoordinates[i][0] - ullon_bound) * (1 / wdpp);
+            const y = (ullat_bound - routeCoordinates[i][1]) * (1 / hdpp);
+            if (i === 0) {
+                ctx.moveTo(x, y);
+            } else {
+                ctx.lineTo(x, y);
+            }
+        }
+        ctx.stroke();
+    }
+
     function updateT() {
         map.style.transform = 'translateX(' + tx + 'px) translateY(' + ty + 'px)';
+        routeLayer.style.transform = map.style.transform;
         dest.style.transform = 'translateX(' + (tx+rtx) + 'px) translateY(' + (ty+rty) + 'px)';
         for (var i = 0; i < markers.length; i++) {
             const marker = markers[i];
@@ -169,7 +200,8 @@ $(function() {
             data: route_params,
             success: function(data) {
                 data = JSON.parse(data);
-                updateImg();
+                routeCoordinates = data.route_coordinates || [];
+                drawRoute();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
                 } else {
@@ -309,6 +341,7 @@ $(function() {
     /* ══════════════════════════════════ ೋღ SETUP ღೋ ════════════════════════════════ */
 
     map = document.getElementById('map');
+    routeLayer = document.getElementById('route-layer');
     dest = document.getElementById('dest');
     dest.style.visibility = 'hidden';
     params.lrlon = real_lrlon();
@@ -319,16 +352,24 @@ $(function() {
     /* Hide scroll bar */
     $('body').css('overflow', 'hidden');
 
+    /* Searches rank places near the current view first */
+    function searchParams(extra) {
+        return $.extend({ ullon: params.ullon, ullat: params.ullat,
+                          lrlon: params.lrlon, lrlat: params.lrlat }, extra);
+    }
+
     /* Make search bar do autocomplete things */
     $('#tags').autocomplete({
-          source: search,
+          source: function (request, response) {
+              $.getJSON(search, searchParams({ term: request.term }), response);
+          },
           minLength: 2,
           select: function (event, ui) {
               $.get({
                   async: true,
                   url: search,
                   dataType: 'json',
-                  data: { term: ui.item.value, full: true},
+                  data: searchParams({ term: ui.item.value, full: true }),
                   success: function(data) {
                       removeMarkers();
                       for (var i = 0; i < data.length; i++) {
@@ -406,7 +447,8 @@ $(function() {
             success: function() {
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
-                update();
+                routeCoordinates = [];
+                drawRoute();
             },
         });
     });
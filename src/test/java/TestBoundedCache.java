@@ -0,0 +1,64 @@
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that BoundedCache stays within its weight, evicts the least recently used values
+ * first and counts hits, misses and evictions.
+ */
+public class TestBoundedCache {
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, String::length);
+        cache.get("a", k -> "aaaa");
+        cache.get("b", k -> "bbbb");
+        assertEquals("aaaa", cache.get("a", k -> "loaded again"));
+        cache.get("c", k -> "cccc"); // evicts b, used longer ago than a
+        assertEquals("aaaa", cache.get("a", k -> "loaded again"));
+        assertEquals("bbbb", cache.get("b", k -> "bbbb")); // evicts c
+        assertEquals("aaaa", cache.get("a", k -> "loaded again"));
+
+        Map<String, Long> stats = cache.stats();
+        assertEquals(2, (long) stats.get("entries"));
+        assertEquals(8, (long) stats.get("weight"));
+        assertEquals(3, (long) stats.get("hits"));
+        assertEquals(4, (long) stats.get("misses"));
+        assertEquals(2, (long) stats.get("evictions"));
+        assertEquals(3.0 / 7, cache.hitRate(), 1e-12);
+    }
+
+    @Test
+    public void testKeepsNeitherNullsNorOversizedValues() {
+        BoundedCache<String, String> cache = new BoundedCache<>(20, String::length);
+        cache.get("a", k -> "aaaa");
+        assertNull(cache.get("missing", k -> null));
+        String big = "far too long to keep here";
+        assertEquals(big, cache.get("big", k -> big));
+        assertEquals("loaded", cache.get("missing", k -> "loaded"));
+        assertEquals("loaded", cache.get("big", k -> "loaded"));
+        assertEquals("aaaa", cache.get("a", k -> "loaded again"));
+        assertEquals(0, (long) cache.stats().get("evictions"));
+
+        // replacing a value gives back the weight of the old one
+        cache.put("a", "a");
+        assertEquals(13, (long) cache.stats().get("weight"));
+        cache.clear();
+        assertEquals(0, (long) cache.stats().get("weight"));
+    }
+
+    @Test
+    public void testRemoveIf() {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(100, String::length);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, "value" + i);
+        }
+        cache.removeIf(key -> key % 2 == 0);
+        assertEquals(5, (long) cache.stats().get("entries"));
+        assertEquals(30, (long) cache.stats().get("weight"));
+        assertEquals("value3", cache.get(3, k -> "loaded"));
+        assertEquals("loaded", cache.get(4, k -> "loaded"));
+    }
+}
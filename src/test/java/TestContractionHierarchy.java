@@ -0,0 +1,74 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a contraction hierarchy saved next to the map is read back on the next load
+ * and routes like A*, and that only the map's own graph is saved.
+ */
+public class TestContractionHierarchy {
+    @Test
+    public void testSavedHierarchyIsLoaded() throws Exception {
+        File dir = Files.createTempDirectory("ch").toFile();
+        File map = new File(dir, "map.osm.xml");
+        Files.copy(new File(getClass().getResource("/berkeley-tiny.osm.xml").toURI()).toPath(),
+                map.toPath());
+        File saved = new File(map.getPath() + ".ch");
+        try {
+            GraphDB built = new GraphDB(map.getPath());
+            assertFalse(saved.exists());
+            built.contractionHierarchy();
+            assertTrue(saved.isFile());
+            long modified = saved.lastModified();
+
+            GraphDB loaded = new GraphDB(map.getPath());
+            ContractionHierarchy hierarchy = loaded.contractionHierarchy();
+            assertEquals(built.contractionHierarchy().shortcutCount(),
+                    hierarchy.shortcutCount());
+            Random random = new Random(5);
+            for (int i = 0; i < 200; i++) {
+                long s = loaded.idAt(random.nextInt(loaded.size()));
+                long t = loaded.idAt(random.nextInt(loaded.size()));
+                assertEquals(length(loaded, new Router.Query(loaded, s, t,
+                        Router.Algorithm.ASTAR).run()), length(loaded, new Router.Query(loaded,
+                        s, t, Router.Algorithm.CONTRACTION_HIERARCHY).run()), 1e-9);
+            }
+
+            // a graph with changes keeps its hierarchy to itself
+            File change = new File(dir, "change.osc");
+            Files.write(change.toPath(), ("<osmChange><delete><way id=\"4000199\"/></delete>"
+                    + "</osmChange>").getBytes("UTF-8"));
+            GraphDB updated = loaded.withChanges(change);
+            assertTrue(updated.contractionHierarchy() != hierarchy);
+            assertEquals(modified, saved.lastModified());
+            assertEquals(hierarchy.shortcutCount(),
+                    new GraphDB(map.getPath()).contractionHierarchy().shortcutCount());
+
+            // nor is the hierarchy of a map without roads
+            File empty = new File(dir, "empty.osm.xml");
+            Files.write(empty.toPath(), "<osm version=\"0.6\"></osm>".getBytes("UTF-8"));
+            assertEquals(0, new GraphDB(empty.getPath()).contractionHierarchy().shortcutCount());
+            assertFalse(new File(empty.getPath() + ".ch").exists());
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static double length(GraphDB g, List<Long> path) {
+        double length = 0;
+        for (int i = 1; i < path.size(); i++) {
+            length += g.distance(path.get(i - 1), path.get(i));
+        }
+        return length;
+    }
+}
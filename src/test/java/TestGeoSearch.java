@@ -0,0 +1,101 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks searches biased towards a place against ranking every location by brute force, on a
+ * map of many locations sharing a few names.
+ */
+public class TestGeoSearch {
+    private static final String[] NAMES = {"Starbucks", "Star Market", "Peet's Coffee",
+        "Coffee Star", "Cheese Board", "Top Dog"};
+
+    @Test
+    public void testMatchesBruteForce() throws Exception {
+        Random random = new Random(99);
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<osm version=\"0.6\">\n");
+        for (int i = 1; i <= 500; i++) {
+            xml.append(String.format(Locale.ROOT,
+                    "  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">\n"
+                    + "    <tag k=\"name\" v=\"%s\"/>\n  </node>\n", i,
+                    37.85 + random.nextDouble() * 0.05, -122.30 + random.nextDouble() * 0.05,
+                    NAMES[random.nextInt(NAMES.length)]));
+        }
+        xml.append("  <way id=\"1\">\n    <nd ref=\"1\"/>\n    <nd ref=\"2\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n  </way>\n</osm>\n");
+        File dir = Files.createTempDirectory("geo").toFile();
+        File map = new File(dir, "map.osm.xml");
+        Files.write(map.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            GraphDB g = new GraphDB(map.getPath());
+            NameIndex words = new NameIndex(g.getLocationMap());
+            for (int round = 0; round < 50; round++) {
+                double lon = -122.30 + random.nextDouble() * 0.05;
+                double lat = 37.85 + random.nextDouble() * 0.05;
+                double radius = 0.1 + random.nextDouble();
+                for (String prefix : new String[] {"", "star", "coffee", "co", "cheese b"}) {
+                    for (int limit : new int[] {1, 3, 10}) {
+                        assertEquals(prefix, bruteForce(g, words, prefix, limit, lon, lat,
+                                radius), g.getMatchingStrings(prefix, limit, lon, lat, radius));
+                    }
+                }
+                List<String> starbucks = Collections.singletonList("Starbucks");
+                List<Long> nearest = new ArrayList<>(g.getLocationMap().get("Starbucks"));
+                nearest.sort(Comparator.comparingDouble(id -> distance(g, id, lon, lat)));
+                for (int limit : new int[] {1, 5, 1000}) {
+                    assertEquals(nearest.subList(0, Math.min(limit, nearest.size())),
+                            new ArrayList<>(g.getNearestLocations(starbucks, lon, lat, limit)
+                                    .keySet()));
+                }
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static List<String> bruteForce(GraphDB g, NameIndex words, String prefix, int limit,
+                                           double lon, double lat, double radius) {
+        Map<String, Integer> wordMatches = words.matches(prefix, true);
+        Map<String, Double> scores = new HashMap<>();
+        for (Map.Entry<String, List<Long>> e : g.getLocationMap().entrySet()) {
+            String name = e.getKey();
+            double step;
+            if (GraphDB.normalize(name).startsWith(GraphDB.normalize(prefix))) {
+                step = 0;
+            } else if (wordMatches.containsKey(name)) {
+                step = 1 + wordMatches.get(name);
+            } else {
+                continue;
+            }
+            double nearest = Double.POSITIVE_INFINITY;
+            for (long id : e.getValue()) {
+                nearest = Math.min(nearest, distance(g, id, lon, lat));
+            }
+            scores.put(name, step + nearest / radius);
+        }
+        List<String> ranked = new ArrayList<>(scores.keySet());
+        ranked.sort(Comparator.comparing((String n) -> scores.get(n)).thenComparing(n -> n));
+        return ranked.subList(0, Math.min(limit, ranked.size()));
+    }
+
+    private static double distance(GraphDB g, long id, double lon, double lat) {
+        GraphDB.Node node = g.locationNodes.get(id);
+        return GraphDB.distance(lon, lat, node.getLon(), node.getLat());
+    }
+}
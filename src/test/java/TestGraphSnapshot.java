@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that snapshot sections are padded by their offset in the file, also past the 2GB
+ * that DataOutputStream.size() can count, and that failed reads and writes leave no snapshot
+ * behind.
+ */
+public class TestGraphSnapshot {
+    @Test
+    public void testPadPastTwoGigabytes() throws Exception {
+        for (long start : new long[] {0, 5, Integer.MAX_VALUE, Integer.MAX_VALUE + 3L,
+                (1L << 33) + 1}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GraphSnapshot.SnapshotOutput out = new GraphSnapshot.SnapshotOutput(bytes, start);
+            out.writeLong(1);
+            out.writeByte(2);
+            GraphSnapshot.pad(out);
+            out.flush();
+            long end = start + 9;
+            long padded = (end + 7) & ~7L;
+            assertEquals(padded, out.position());
+            assertEquals(padded - start, bytes.size());
+            GraphSnapshot.pad(out);
+            assertEquals(padded, out.position());
+        }
+    }
+
+    @Test
+    public void testFailedWriteLeavesNoFiles() throws Exception {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        File file = new File(dir, "map.osm.xml" + GraphSnapshot.SUFFIX);
+        try {
+            new GraphSnapshot().write(file, new File(dir, "map.osm.xml"));
+            fail("wrote a snapshot of a missing map");
+        } catch (IOException e) {
+            assertEquals(0, dir.listFiles().length);
+        } finally {
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedMapGetsNoSnapshot() throws Exception {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        try {
+            for (String name : new String[] {"berkeley-tiny.osm.xml", "berkeley-tiny.osm.pbf"}) {
+                byte[] bytes = Files.readAllBytes(new File(getClass().getResource("/" + name)
+                        .toURI()).toPath());
+                File map = new File(dir, name);
+                Files.write(map.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+                new GraphDB(map.getPath());
+                assertFalse(name, new File(map.getPath() + GraphSnapshot.SUFFIX).exists());
+
+                Files.write(map.toPath(), bytes);
+                assertEquals(GraphDB.parseMap(map.getPath()).size(),
+                        new GraphDB(map.getPath()).size());
+                assertTrue(name, new File(map.getPath() + GraphSnapshot.SUFFIX).exists());
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that GraphVersions keeps pinned versions until they are closed, publishes updates
+ * in order, prepares every version before publishing it, and keeps the current version when
+ * an update or its preparation fails.
+ */
+public class TestGraphVersions {
+    private static GraphDB parse() throws Exception {
+        File map = new File(TestGraphVersions.class.getResource("/berkeley-tiny.osm.xml").toURI());
+        return GraphDB.parseMap(map.getPath());
+    }
+
+    @Test
+    public void testPinnedVersionOutlivesPublish() throws Exception {
+        GraphDB first = parse();
+        GraphDB second = parse();
+        GraphVersions versions = new GraphVersions(first);
+
+        GraphVersions.Version pinned = versions.acquire();
+        assertEquals(1, pinned.number());
+        versions.update(current -> second).get();
+        assertSame(first, pinned.graph());
+        assertEquals(1, versions.draining());
+        try (GraphVersions.Version v = versions.acquire()) {
+            assertEquals(2, v.number());
+            assertSame(second, v.graph());
+        }
+        pinned.close();
+        assertEquals(0, versions.draining());
+
+        // a version nobody pinned drains as soon as it is replaced
+        versions.update(current -> first).get();
+        assertEquals(0, versions.draining());
+    }
+
+    @Test
+    public void testUpdatesRunInOrder() throws Exception {
+        GraphDB graph = parse();
+        GraphVersions versions = new GraphVersions(graph);
+        Future<GraphVersions.Version> slow = versions.update(current -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return current;
+        });
+        Future<GraphVersions.Version> failed = versions.update(current -> {
+            throw new IOException("broken map");
+        });
+        Future<GraphVersions.Version> last = versions.update(current -> current);
+        assertEquals(2, slow.get().number());
+        try {
+            failed.get();
+            fail("a failed update was published");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(3, last.get().number());
+        try (GraphVersions.Version v = versions.acquire()) {
+            assertEquals(3, v.number());
+            assertSame(graph, v.graph());
+        }
+    }
+
+    @Test
+    public void testVersionsArePreparedBeforePublished() throws Exception {
+        GraphDB graph = parse();
+        List<Long> prepared = new ArrayList<>();
+        GraphVersions[] holder = new GraphVersions[1];
+        GraphVersions versions = new GraphVersions(graph, next -> {
+            prepared.add(next.number());
+            if (holder[0] != null) {
+                try (GraphVersions.Version v = holder[0].acquire()) {
+                    assertEquals(next.number() - 1, v.number());
+                }
+            }
+        });
+        holder[0] = versions;
+        assertEquals(Arrays.asList(1L), prepared);
+        versions.update(current -> current).get();
+        versions.update(current -> current).get();
+        assertEquals(Arrays.asList(1L, 2L, 3L), prepared);
+
+        // a version failing its preparation is not published, nor does it use up a number
+        AtomicInteger failures = new AtomicInteger(1);
+        GraphVersions failing = new GraphVersions(graph, next -> {
+            if (next.number() > 1 && failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("no hierarchy");
+            }
+        });
+        try {
+            failing.update(current -> current).get();
+            fail("a version failing its preparation was published");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try (GraphVersions.Version v = failing.acquire()) {
+            assertEquals(1, v.number());
+        }
+        assertEquals(2, failing.update(current -> current).get().number());
+    }
+}
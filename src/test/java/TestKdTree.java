@@ -0,0 +1,86 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the k-d tree against a brute-force scan over random points. Coordinates are snapped
+ * to a coarse grid so that duplicate points and distance ties are common.
+ */
+public class TestKdTree {
+    private static final int NUM_TRIALS = 10;
+    private static final int NUM_QUERIES = 100;
+
+    @Test
+    public void testMatchesBruteForce() {
+        Random random = new Random(61);
+        for (int trial = 0; trial < NUM_TRIALS; trial++) {
+            int n = 1 + random.nextInt(2000);
+            double[] lons = new double[n];
+            double[] lats = new double[n];
+            for (int i = 0; i < n; i++) {
+                lons[i] = MapServer.ROOT_ULLON + random.nextInt(400) * 0.0002;
+                lats[i] = MapServer.ROOT_LRLAT + random.nextInt(400) * 0.0002;
+            }
+            KdTree tree = new KdTree(lons, lats);
+
+            for (int q = 0; q < NUM_QUERIES; q++) {
+                double lon = MapServer.ROOT_ULLON - 0.01 + random.nextDouble() * 0.1;
+                double lat = MapServer.ROOT_LRLAT - 0.01 + random.nextDouble() * 0.1;
+                double[] distances = new double[n];
+                for (int i = 0; i < n; i++) {
+                    distances[i] = GraphDB.distance(lons[i], lats[i], lon, lat);
+                }
+                Integer[] expected = byDistance(distances);
+
+                assertEquals((int) expected[0], tree.nearest(lon, lat));
+
+                int k = 1 + random.nextInt(10);
+                int[] nearest = tree.nearest(lon, lat, k);
+                assertEquals(Math.min(k, n), nearest.length);
+                for (int i = 0; i < nearest.length; i++) {
+                    assertEquals((int) expected[i], nearest[i]);
+                }
+
+                double radius = random.nextDouble() * 0.5;
+                int[] within = tree.within(lon, lat, radius);
+                int count = 0;
+                while (count < n && distances[expected[count]] <= radius) {
+                    assertEquals((int) expected[count], within[count]);
+                    count++;
+                }
+                assertEquals(count, within.length);
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        KdTree tree = new KdTree(new double[0], new double[0]);
+        assertEquals(-1, tree.nearest(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT));
+        assertEquals(0, tree.within(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT, 1).length);
+    }
+
+    @Test
+    public void testNoNeighborsAskedFor() {
+        KdTree tree = new KdTree(new double[] {MapServer.ROOT_ULLON},
+                new double[] {MapServer.ROOT_ULLAT});
+        assertEquals(0, tree.nearest(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT, 0).length);
+        assertEquals(0, tree.nearest(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT, -1).length);
+    }
+
+    // indices of the points ordered by their distances, ties by index
+    private static Integer[] byDistance(double[] distances) {
+        Integer[] order = new Integer[distances.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Double.compare(distances[a], distances[b]);
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        return order;
+    }
+}
@@ -0,0 +1,113 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that landmarks are picked in every sizable part of a graph whose roads do not all
+ * connect, that the tables keep no columns for landmarks there was no vertex for, and that
+ * ALT still routes like A*.
+ */
+public class TestLandmarks {
+    @Test
+    public void testEveryPartGetsLandmarks() throws Exception {
+        // two streets of six nodes each that do not meet
+        StringBuilder xml = new StringBuilder();
+        xml.append(street(1, 1, 6, -122.30, 37.87));
+        xml.append(street(2, 11, 6, -122.20, 37.87));
+        File dir = Files.createTempDirectory("landmarks").toFile();
+        try {
+            GraphDB g = graph(dir, xml);
+            Landmarks landmarks = new Landmarks(g, 4);
+            assertEquals(4, landmarks.count());
+            for (long[] part : new long[][] {{1, 6}, {11, 16}}) {
+                for (long s = part[0]; s <= part[1]; s++) {
+                    for (long t = part[0]; t <= part[1]; t++) {
+                        double bound = landmarks.lowerBound(g.indexOf(s),
+                                landmarks.distancesTo(g.indexOf(t)));
+                        // a landmark at either end of a street knows every distance on it
+                        assertEquals(distance(g, s, t), bound, 1e-9);
+                    }
+                }
+            }
+
+            for (long s : new long[] {1, 4, 11, 13}) {
+                for (long t : new long[] {2, 6, 12, 16}) {
+                    List<Long> astar = new Router.Query(g, s, t, Router.Algorithm.ASTAR).run();
+                    assertEquals(astar, new Router.Query(g, s, t, Router.Algorithm.ALT).run());
+                }
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testUnusedColumnsAreDropped() throws Exception {
+        // one street of four nodes and eight short ones of two, too small to get landmarks
+        StringBuilder xml = new StringBuilder();
+        xml.append(street(1, 1, 4, -122.30, 37.87));
+        for (int i = 0; i < 8; i++) {
+            xml.append(street(10 + i, 100 + 2 * i, 2, -122.20 + i * 0.01, 37.87));
+        }
+        File dir = Files.createTempDirectory("landmarks").toFile();
+        try {
+            GraphDB g = graph(dir, xml);
+            assertEquals(20, g.size());
+            Landmarks landmarks = new Landmarks(g, 5);
+            assertEquals(4, landmarks.count());
+            assertEquals(20 * 8, landmarks.bytesPerLandmark());
+            for (long s = 1; s <= 4; s++) {
+                assertEquals(distance(g, s, 1), landmarks.lowerBound(g.indexOf(s),
+                        landmarks.distancesTo(g.indexOf(1))), 1e-9);
+            }
+            assertEquals(0, landmarks.lowerBound(g.indexOf(100),
+                    landmarks.distancesTo(g.indexOf(101))), 0);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // road distance between two nodes of the same street, which is straight
+    private static double distance(GraphDB g, long s, long t) {
+        double length = 0;
+        for (long v = Math.min(s, t); v < Math.max(s, t); v++) {
+            length += g.distance(v, v + 1);
+        }
+        return length;
+    }
+
+    private static GraphDB graph(File dir, StringBuilder ways) throws Exception {
+        File map = new File(dir, "map.osm.xml");
+        Files.write(map.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<osm version=\"0.6\">\n" + ways + "</osm>\n").getBytes(StandardCharsets.UTF_8));
+        return new GraphDB(map.getPath());
+    }
+
+    // a street of nodes first, first + 1, ... heading east from lon, lat
+    private static String street(long id, long first, int nodes, double lon, double lat) {
+        StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < nodes; i++) {
+            xml.append(String.format(Locale.ROOT, "  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>\n",
+                    first + i, lat, lon + i * 0.001));
+        }
+        xml.append("  <way id=\"").append(id).append("\">\n");
+        for (int i = 0; i < nodes; i++) {
+            xml.append("    <nd ref=\"").append(first + i).append("\"/>\n");
+        }
+        return xml.append("    <tag k=\"highway\" v=\"residential\"/>\n  </way>\n").toString();
+    }
+
+    private static void delete(File dir) {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks NameIndex finds names by their words, with typos and as prefixes, and its bounded
+ * edit distance against the textbook one.
+ */
+public class TestNameIndex {
+    private static NameIndex index(Object... namesAndCounts) {
+        Map<String, List<Long>> locations = new HashMap<>();
+        long id = 1;
+        for (int i = 0; i < namesAndCounts.length; i += 2) {
+            List<Long> ids = new ArrayList<>();
+            for (int j = 0; j < (Integer) namesAndCounts[i + 1]; j++) {
+                ids.add(id++);
+            }
+            locations.put((String) namesAndCounts[i], ids);
+        }
+        return new NameIndex(locations);
+    }
+
+    @Test
+    public void testSearch() {
+        NameIndex index = index("Caffe Strada", 1, "Cafe Milano", 2, "Strada Nuova", 1,
+                "Top Dog", 3, "Peet's Coffee & Tea", 4);
+
+        assertEquals(Arrays.asList("Caffe Strada", "Strada Nuova"),
+                index.search("strada", 10, false));
+        // one typo in each word, and words in any order
+        assertEquals(Arrays.asList("Caffe Strada"), index.search("cafe strada", 10, false));
+        assertEquals(Arrays.asList("Caffe Strada"), index.search("Srtada Caffe", 10, false));
+        // the exact match first, then by number of locations
+        assertEquals(Arrays.asList("Cafe Milano", "Caffe Strada"),
+                index.search("cafe", 10, false));
+        assertEquals(Arrays.asList("Cafe Milano"), index.search("cafe", 1, false));
+        // short words must match exactly
+        assertEquals(Arrays.asList("Top Dog"), index.search("dog", 10, false));
+        assertTrue(index.search("dig", 10, false).isEmpty());
+        // the last word may be a prefix
+        assertTrue(index.search("coffee t", 10, false).isEmpty());
+        assertEquals(Arrays.asList("Peet's Coffee & Tea"), index.search("coffee t", 10, true));
+        assertEquals(Arrays.asList("Strada Nuova"), index.search("nuova str", 10, true));
+        assertTrue(index.search("", 10, true).isEmpty());
+        assertTrue(index.search("zebra", 10, true).isEmpty());
+    }
+
+    @Test
+    public void testDistance() {
+        Random random = new Random(31);
+        for (int i = 0; i < 2000; i++) {
+            String a = randomWord(random);
+            String b = randomWord(random);
+            int expected = osa(a, b);
+            for (int max = 0; max <= 3; max++) {
+                assertEquals(a + " " + b, Math.min(expected, max + 1),
+                        NameIndex.distance(a, b, max));
+            }
+        }
+        assertEquals(1, NameIndex.distance("strada", "srtada", 2));
+        assertEquals(1, NameIndex.distance("cafe", "caffe", 1));
+    }
+
+    @Test
+    public void testDeletionsFindEveryCloseWord() {
+        // two words within k edits have a deletion of at most k characters in common
+        Random random = new Random(47);
+        for (int i = 0; i < 2000; i++) {
+            String a = randomWord(random);
+            String b = randomWord(random);
+            int d = osa(a, b);
+            if (d <= NameIndex.MAX_EDITS) {
+                List<String> common = new ArrayList<>(NameIndex.deletions(a, d));
+                common.retainAll(NameIndex.deletions(b, d));
+                assertTrue(a + " " + b, !common.isEmpty());
+            }
+        }
+    }
+
+    private static String randomWord(Random random) {
+        StringBuilder s = new StringBuilder();
+        int length = random.nextInt(7);
+        for (int i = 0; i < length; i++) {
+            s.append("abc".charAt(random.nextInt(3)));
+        }
+        return s.toString();
+    }
+
+    // optimal string alignment distance, computed in full
+    private static int osa(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            d[i][0] = i;
+        }
+        for (int j = 0; j <= b.length(); j++) {
+            d[0][j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Collections.min(Arrays.asList(d[i - 1][j] + 1, d[i][j - 1] + 1,
+                        d[i - 1][j - 1] + cost));
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2)
+                        && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+}
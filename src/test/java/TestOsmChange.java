@@ -0,0 +1,173 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that applying an osmChange file to a GraphDB builds the same graph as parsing the
+ * map with the changes merged in by hand, and leaves the original graph alone.
+ */
+public class TestOsmChange {
+    private static final String CHANGE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osmChange version=\"0.6\">\n"
+            + "  <modify>\n"
+            + "    <node id=\"53000133\" lat=\"37.8740001\" lon=\"-122.2700002\" version=\"2\"/>\n"
+            + "    <way id=\"4000199\" version=\"2\">\n"
+            + "      <nd ref=\"53000576\"/>\n"
+            + "      <nd ref=\"53000686\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/>\n"
+            + "      <tag k=\"name\" v=\"Back Alley\"/>\n"
+            + "    </way>\n"
+            + "    <way id=\"4000196\" version=\"2\">\n"
+            + "      <nd ref=\"53000032\"/>\n"
+            + "      <nd ref=\"53000133\"/>\n"
+            + "      <nd ref=\"53000276\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    </way>\n"
+            + "    <way id=\"4000032\" version=\"2\">\n"
+            + "      <nd ref=\"53000032\"/>\n"
+            + "      <nd ref=\"53000046\"/>\n"
+            + "      <tag k=\"building\" v=\"yes\"/>\n"
+            + "    </way>\n"
+            + "  </modify>\n"
+            + "  <delete>\n"
+            + "    <way id=\"4000026\" version=\"2\"/>\n"
+            + "    <node id=\"53001861\" version=\"2\"/>\n"
+            + "  </delete>\n"
+            + "  <create>\n"
+            + "    <node id=\"60000001\" lat=\"37.8751000\" lon=\"-122.2711000\" version=\"1\"/>\n"
+            + "    <node id=\"60000002\" lat=\"37.8752000\" lon=\"-122.2722000\" version=\"1\"/>\n"
+            + "    <node id=\"60000003\" lat=\"37.8753000\" lon=\"-122.2733000\" version=\"1\">\n"
+            + "      <tag k=\"amenity\" v=\"cafe\"/>\n"
+            + "      <tag k=\"name\" v=\"New Cafe\"/>\n"
+            + "    </node>\n"
+            + "    <way id=\"4100001\" version=\"1\">\n"
+            + "      <nd ref=\"60000001\"/>\n"
+            + "      <nd ref=\"60000002\"/>\n"
+            + "      <nd ref=\"53000127\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/>\n"
+            + "      <tag k=\"name\" v=\"New Street\"/>\n"
+            + "    </way>\n"
+            + "  </create>\n"
+            + "</osmChange>\n";
+
+    @Test
+    public void testChangesMatchMergedMap() throws Exception {
+        File map = new File(getClass().getResource("/berkeley-tiny.osm.xml").toURI());
+        String xml = new String(Files.readAllBytes(map.toPath()), StandardCharsets.UTF_8);
+
+        // the same changes, merged into the map by hand
+        xml = replaceNode(xml, "53000133",
+                "  <node id=\"53000133\" lat=\"37.8740001\" lon=\"-122.2700002\"/>\n");
+        xml = replaceWay(xml, "4000199", "  <way id=\"4000199\">\n"
+                + "    <nd ref=\"53000576\"/>\n    <nd ref=\"53000686\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "    <tag k=\"name\" v=\"Back Alley\"/>\n  </way>\n");
+        xml = replaceWay(xml, "4000196", "  <way id=\"4000196\">\n"
+                + "    <nd ref=\"53000032\"/>\n    <nd ref=\"53000133\"/>\n"
+                + "    <nd ref=\"53000276\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n  </way>\n");
+        xml = replaceWay(xml, "4000032", "");
+        xml = replaceWay(xml, "4000026", "");
+        xml = replaceNode(xml, "53001861", "");
+        int firstWay = xml.indexOf("  <way ");
+        xml = xml.substring(0, firstWay)
+                + "  <node id=\"60000001\" lat=\"37.8751000\" lon=\"-122.2711000\"/>\n"
+                + "  <node id=\"60000002\" lat=\"37.8752000\" lon=\"-122.2722000\"/>\n"
+                + "  <node id=\"60000003\" lat=\"37.8753000\" lon=\"-122.2733000\">\n"
+                + "    <tag k=\"name\" v=\"New Cafe\"/>\n  </node>\n"
+                + xml.substring(firstWay);
+        int end = xml.indexOf("  <relation ");
+        xml = xml.substring(0, end) + "  <way id=\"4100001\">\n"
+                + "    <nd ref=\"60000001\"/>\n    <nd ref=\"60000002\"/>\n"
+                + "    <nd ref=\"53000127\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "    <tag k=\"name\" v=\"New Street\"/>\n  </way>\n"
+                + xml.substring(end);
+
+        File merged = File.createTempFile("merged", ".osm.xml");
+        File change = File.createTempFile("change", ".osc");
+        try {
+            write(merged, xml);
+            write(change, CHANGE);
+            GraphDB original = GraphDB.parseMap(map.getPath());
+            GraphDB updated = original.withChanges(change);
+
+            TestOsmPbfReader.assertSameGraph(GraphDB.parseMap(merged.getPath()), updated);
+            TestOsmPbfReader.assertSameGraph(GraphDB.parseMap(map.getPath()), original);
+            assertTrue(updated.hasVertex(60000002));
+            assertFalse(original.hasVertex(60000002));
+            assertTrue(updated.getRoad(53000576).contains("Back Alley"));
+            assertFalse(updated.getRoad(53000576).contains("Alley"));
+
+            // a second update builds on the first, not on the map
+            write(change, "<osmChange><delete><way id=\"4100001\"/></delete></osmChange>");
+            assertFalse(updated.withChanges(change).hasVertex(60000002));
+        } finally {
+            merged.delete();
+            change.delete();
+        }
+    }
+
+    @Test
+    public void testChangedGraphKeepsStorageAndLandmarksFile() throws Exception {
+        File dir = Files.createTempDirectory("change").toFile();
+        File map = new File(dir, "map.osm.xml");
+        Files.copy(new File(getClass().getResource("/berkeley-tiny.osm.xml").toURI()).toPath(),
+                map.toPath());
+        File change = new File(dir, "change.osc");
+        try {
+            write(change, CHANGE);
+            GraphDB original = new GraphDB(map.getPath(), GraphDB.Storage.MAPPED);
+            original.landmarks();
+            File landmarks = new File(map.getPath() + ".landmarks");
+            byte[] saved = Files.readAllBytes(landmarks.toPath());
+
+            GraphDB updated = original.withChanges(change);
+            // mapped graphs keep nothing on the heap
+            assertEquals(0, original.memoryBytes());
+            assertEquals(0, updated.memoryBytes());
+            assertTrue(new File(map.getPath() + GraphDB.CHANGED_SUFFIX).isFile());
+            TestOsmPbfReader.assertSameGraph(GraphDB.parseMap(map.getPath()).withChanges(change),
+                    updated);
+            assertTrue(updated.landmarks() != original.landmarks());
+            assertTrue(Arrays.equals(saved, Files.readAllBytes(landmarks.toPath())));
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static String replaceNode(String xml, String id, String replacement) {
+        return replaceOnce(xml, "  <node id=\"" + id + "\"[^>]*?(/>|>.*?</node>)\n",
+                replacement);
+    }
+
+    private static String replaceWay(String xml, String id, String replacement) {
+        return replaceOnce(xml, "  <way id=\"" + id + "\".*?</way>\n", replacement);
+    }
+
+    private static String replaceOnce(String xml, String regex, String replacement) {
+        Matcher m = Pattern.compile(regex, Pattern.DOTALL).matcher(xml);
+        assertTrue(regex, m.find());
+        return xml.substring(0, m.start()) + replacement + xml.substring(m.end());
+    }
+
+    private static void write(File file, String contents) throws Exception {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
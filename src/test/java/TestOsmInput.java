@@ -0,0 +1,97 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that OsmInput reads gzip and bzip2 compressed maps exactly like the uncompressed
+ * files, and that BackgroundInputStream passes on every byte of its source.
+ */
+public class TestOsmInput {
+    @Test
+    public void testCompressedMapsBuildSameGraph() throws Exception {
+        for (String name : new String[] {"berkeley-tiny.osm.xml", "berkeley-tiny.osm.pbf"}) {
+            File plain = new File(getClass().getResource("/" + name).toURI());
+            byte[] bytes = Files.readAllBytes(plain.toPath());
+            GraphDB expected = GraphDB.parseMap(plain.getPath());
+
+            File gzip = File.createTempFile("map", ".gz");
+            File bzip2 = File.createTempFile("map", ".bz2");
+            try {
+                try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip))) {
+                    out.write(bytes);
+                }
+                try (OutputStream out = new BZip2CompressorOutputStream(
+                        new FileOutputStream(bzip2))) {
+                    out.write(bytes);
+                }
+                for (File compressed : new File[] {gzip, bzip2}) {
+                    try (InputStream in = OsmInput.open(compressed)) {
+                        assertTrue(Arrays.equals(bytes, readAll(in)));
+                    }
+                    TestOsmPbfReader.assertSameGraph(expected,
+                            GraphDB.parseMap(compressed.getPath()));
+                }
+            } finally {
+                gzip.delete();
+                bzip2.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsZstd() throws IOException {
+        File zstd = File.createTempFile("map", ".zst");
+        try {
+            try (OutputStream out = new FileOutputStream(zstd)) {
+                out.write(new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0, 0, 0, 0});
+            }
+            OsmInput.open(zstd).close();
+            fail("opened a Zstandard file");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Zstandard"));
+        } finally {
+            zstd.delete();
+        }
+    }
+
+    @Test
+    public void testBackgroundStreamPassesAllBytes() throws IOException {
+        Random random = new Random(61);
+        for (int length : new int[] {0, 1, 1 << 16, (1 << 16) + 1, 1000003}) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            try (InputStream in = new BackgroundInputStream(
+                    new ByteArrayInputStream(bytes), "test")) {
+                assertTrue(Arrays.equals(bytes, readAll(in)));
+                assertEquals(-1, in.read());
+            }
+        }
+        // closing early must not hang the source thread
+        new BackgroundInputStream(new ByteArrayInputStream(new byte[1 << 22]), "test").close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4093];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks OsmPbfReader against OsmXmlScanner on a small extract of Berkeley stored both as
+ * XML and as PBF. The PBF file spreads its elements over several blocks, some compressed and
+ * some raw, and holds both plain and dense nodes, tagged relations and Unicode names.
+ */
+public class TestOsmPbfReader {
+    private static final String XML_PATH = resource("berkeley-tiny.osm.xml");
+    private static final String PBF_PATH = resource("berkeley-tiny.osm.pbf");
+
+    private static String resource(String name) {
+        try {
+            return new File(TestOsmPbfReader.class.getResource("/" + name).toURI()).getPath();
+        } catch (Exception e) {
+            throw new IllegalStateException("missing test resource " + name, e);
+        }
+    }
+
+    @Test
+    public void testSameElementsAsXml() throws Exception {
+        Recorder expected = new Recorder();
+        try (InputStream in = new FileInputStream(XML_PATH)) {
+            new OsmXmlScanner(in).read(expected);
+        }
+        for (int threads = 1; threads <= 4; threads++) {
+            Recorder actual = new Recorder();
+            try (InputStream in = new FileInputStream(PBF_PATH)) {
+                new OsmPbfReader(in, threads).read(actual);
+            }
+            assertEquals(expected.elements, actual.elements);
+        }
+    }
+
+    @Test
+    public void testSameGraphAsXml() {
+        GraphDB xml = GraphDB.parseMap(XML_PATH);
+        assertTrue(xml.size() > 0);
+        assertSameGraph(xml, GraphDB.parseMap(PBF_PATH));
+    }
+
+    /** Checks that two graphs have the same vertices, edges, road names and locations. */
+    static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.idAt(i), actual.idAt(i));
+            assertEquals(Double.doubleToLongBits(expected.lonAt(i)),
+                    Double.doubleToLongBits(actual.lonAt(i)));
+            assertEquals(Double.doubleToLongBits(expected.latAt(i)),
+                    Double.doubleToLongBits(actual.latAt(i)));
+            assertEquals(expected.edgeEnd(i) - expected.edgeStart(i),
+                    actual.edgeEnd(i) - actual.edgeStart(i));
+            for (int e = expected.edgeStart(i), f = actual.edgeStart(i);
+                 e < expected.edgeEnd(i); e++, f++) {
+                assertEquals(expected.edgeTarget(e), actual.edgeTarget(f));
+            }
+            assertEquals(expected.getRoad(expected.idAt(i)), actual.getRoad(actual.idAt(i)));
+        }
+        assertEquals(expected.getLocationMap(), actual.getLocationMap());
+        assertEquals(expected.locationNodes.keySet(), actual.locationNodes.keySet());
+        assertEquals(expected.getMatchingStrings("b"), actual.getMatchingStrings("b"));
+    }
+
+    @Test
+    public void testDetectsPbf() throws IOException {
+        byte[] pbf = Files.readAllBytes(new File(PBF_PATH).toPath());
+        byte[] xml = Files.readAllBytes(new File(XML_PATH).toPath());
+        assertTrue(OsmPbfReader.isPbf(pbf, pbf.length));
+        assertFalse(OsmPbfReader.isPbf(xml, xml.length));
+        assertFalse(OsmPbfReader.isPbf(pbf, 8));
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        byte[] pbf = Files.readAllBytes(new File(PBF_PATH).toPath());
+        for (int length : new int[] {3, 20, pbf.length / 2, pbf.length - 1}) {
+            InputStream in = new ByteArrayInputStream(pbf, 0, length);
+            try {
+                new OsmPbfReader(in, 2).read(new Recorder());
+                fail("read " + length + " of " + pbf.length + " bytes without error");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /** Writes down every element it receives. */
+    private static class Recorder implements OsmSink {
+        final List<String> elements = new ArrayList<>();
+
+        @Override
+        public void node(long id, double lon, double lat, String name) {
+            elements.add("node " + id + " " + Double.doubleToLongBits(lon) + " "
+                    + Double.doubleToLongBits(lat) + " " + name);
+        }
+
+        @Override
+        public void way(long id, long[] refs, int count, String highway, String name) {
+            StringBuilder s = new StringBuilder("way " + id);
+            for (int i = 0; i < count; i++) {
+                s.append(' ').append(refs[i]);
+            }
+            elements.add(s + " " + highway + " " + name);
+        }
+    }
+}
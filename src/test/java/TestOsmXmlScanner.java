@@ -0,0 +1,145 @@
+import org.junit.Test;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that OsmXmlScanner reports exactly the elements the SAX-based GraphBuildingHandler
+ * does, on hand-written XML with awkward syntax and on random maps. The scanner is fed a few
+ * bytes at a time so that tags straddle every possible buffer refill.
+ */
+public class TestOsmXmlScanner {
+    private static final String TRICKY_XML = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<!-- a comment with <node id=\"1\"> and \"quotes\" -->\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <bounds minlat=\"37.8\" minlon=\"-122.3\" maxlat=\"37.9\" maxlon=\"-122.2\"/>\n"
+            + "  <node id='1' lat='37.8700001' lon='-122.2500000' version=\"1\"/>\n"
+            + "  <node\n\tid=\"2\"  lon = \"-122.25\" lat=\"37.87\" >\n"
+            + "    <tag k=\"name\" v=\"Caf&#233; &amp; Bar &quot;Rouge&quot; &#x263A; 7-Eleven\"/>\n"
+            + "    <tag k=\"amenity\" v=\"cafe\"/>\n"
+            + "  </node>\n"
+            + "  <node id=\"3\" lat=\"3.7E1\" lon=\"-122.123456789012345678\">"
+            + "<tag k=\"name\" v=\"Stra&#223;e\tmit\r\nZeilen > und &lt;Zeichen&gt;\"/></node>\n"
+            + "  <node id=\"4\" lat=\"0.000001\" lon=\"-0.0\"/>\n"
+            + "  <way id=\"10\">\n"
+            + "    <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+            + "    <nd ref=\"3\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    <tag k=\"name\" v=\"Hearst Avenue\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"11\"/>\n"
+            + "  <way id=\"12\"><nd ref=\"4\"/><tag k=\"building\" v=\"yes\"/></way>\n"
+            + "  <relation id=\"20\">\n"
+            + "    <member type=\"way\" ref=\"10\" role=\"\"/>\n"
+            + "    <tag k=\"name\" v=\"Route 1\"/>\n"
+            + "    <tag k=\"highway\" v=\"primary\"/>\n"
+            + "  </relation>\n"
+            + "</osm>\n";
+
+    @Test
+    public void testTrickySyntax() throws Exception {
+        assertSameElements(TRICKY_XML);
+    }
+
+    @Test
+    public void testRandomMaps() throws Exception {
+        Random random = new Random(61);
+        for (int trial = 0; trial < 20; trial++) {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<osm>\n");
+            int nodes = 1 + random.nextInt(300);
+            for (int i = 0; i < nodes; i++) {
+                xml.append("<node id=\"").append(i).append("\" lat=\"")
+                        .append(randomCoordinate(random, 90)).append("\" lon=\"")
+                        .append(randomCoordinate(random, 180)).append('"');
+                if (random.nextInt(5) == 0) {
+                    xml.append("><tag k=\"name\" v=\"place ").append(i).append("\"/></node>\n");
+                } else {
+                    xml.append("/>\n");
+                }
+            }
+            int ways = random.nextInt(50);
+            for (int w = 0; w < ways; w++) {
+                xml.append("<way id=\"").append(w).append("\">");
+                int length = random.nextInt(8);
+                for (int j = 0; j < length; j++) {
+                    xml.append("<nd ref=\"").append(random.nextInt(nodes)).append("\"/>");
+                }
+                xml.append("<tag k=\"highway\" v=\"")
+                        .append(random.nextBoolean() ? "residential" : "footway").append("\"/>");
+                xml.append("</way>\n");
+            }
+            xml.append("</osm>\n");
+            assertSameElements(xml.toString());
+        }
+    }
+
+    // a coordinate written either with a fixed number of decimals or by Double.toString
+    private static String randomCoordinate(Random random, double range) {
+        double value = (random.nextDouble() * 2 - 1) * range;
+        if (random.nextBoolean()) {
+            return String.format(Locale.ROOT, "%." + random.nextInt(10) + "f", value);
+        }
+        return Double.toString(random.nextDouble() < 0.1 ? value * 1e-9 : value);
+    }
+
+    private static void assertSameElements(String xml) throws Exception {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+
+        Recorder expected = new Recorder();
+        SAXParserFactory.newInstance().newSAXParser()
+                .parse(new ByteArrayInputStream(bytes), new GraphBuildingHandler(expected));
+
+        Recorder actual = new Recorder();
+        new OsmXmlScanner(new Trickle(new ByteArrayInputStream(bytes))).read(actual);
+        assertEquals(expected.elements, actual.elements);
+
+        Recorder piped = new Recorder();
+        OsmPipeline.run(new OsmXmlScanner(new ByteArrayInputStream(bytes)), piped);
+        assertEquals(expected.elements, piped.elements);
+    }
+
+    /** Writes down every element it receives. */
+    private static class Recorder implements OsmSink {
+        final List<String> elements = new ArrayList<>();
+
+        @Override
+        public void node(long id, double lon, double lat, String name) {
+            elements.add("node " + id + " " + Double.doubleToLongBits(lon) + " "
+                    + Double.doubleToLongBits(lat) + " " + name);
+        }
+
+        @Override
+        public void way(long id, long[] refs, int count, String highway, String name) {
+            StringBuilder s = new StringBuilder("way " + id);
+            for (int i = 0; i < count; i++) {
+                s.append(' ').append(refs[i]);
+            }
+            elements.add(s + " " + highway + " " + name);
+        }
+    }
+
+    /** Returns at most 7 bytes per read. */
+    private static class Trickle extends FilterInputStream {
+        private int next = 1;
+
+        Trickle(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            next = next % 7 + 1;
+            return super.read(b, off, Math.min(len, next));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the node ids collected by RoutableNodes against a HashSet, and that reading a map in
+ * two passes builds the same graph as reading it once.
+ */
+public class TestRoutableNodes {
+    @Test
+    public void testMatchesHashSet() {
+        Random random = new Random(61);
+        for (int trial = 0; trial < 20; trial++) {
+            RoutableNodes routable = new RoutableNodes();
+            Set<Long> expected = new HashSet<>();
+            int ways = random.nextInt(2000);
+            long[] refs = new long[10];
+            for (int w = 0; w < ways; w++) {
+                int count = random.nextInt(refs.length + 1);
+                for (int i = 0; i < count; i++) {
+                    refs[i] = random.nextInt(20000) - 100;
+                }
+                boolean allowed = random.nextBoolean();
+                routable.way(w, refs, count, allowed ? "residential" : "footway", null);
+                for (int i = 0; allowed && count > 1 && i < count; i++) {
+                    expected.add(refs[i]);
+                }
+            }
+            assertEquals(expected.size(), routable.size());
+            for (long id = -200; id < 20100; id++) {
+                assertEquals(expected.contains(id), routable.contains(id));
+            }
+        }
+    }
+
+    @Test
+    public void testTwoPassBuildsSameGraph() throws Exception {
+        for (String name : new String[] {"berkeley-tiny.osm.xml", "berkeley-tiny.osm.pbf"}) {
+            String path = new File(getClass().getResource("/" + name).toURI()).getPath();
+            TestOsmPbfReader.assertSameGraph(GraphDB.parseMap(path),
+                    GraphDB.parseMap(path, GraphDB.Ingestion.TWO_PASS));
+        }
+    }
+}
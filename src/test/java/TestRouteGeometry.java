@@ -0,0 +1,75 @@
+import org.junit.Test;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the Douglas-Peucker simplification of RouteGeometry and that its paths leave out
+ * segments away from the raster.
+ */
+public class TestRouteGeometry {
+    @Test
+    public void testSimplify() {
+        // a straight line keeps its ends only
+        double[] xs = {0, 1, 2, 3, 4, 5};
+        double[] ys = {0, 0.1, 0, -0.1, 0, 0};
+        boolean[] keep = RouteGeometry.simplify(xs, ys, 0.5);
+        assertTrue(keep[0] && keep[5]);
+        for (int i = 1; i < 5; i++) {
+            assertFalse(keep[i]);
+        }
+
+        // the corner is kept, and the spike within the tolerance dropped
+        xs = new double[] {0, 5, 10, 10, 10, 10.2, 10, 10};
+        ys = new double[] {0, 0.2, 0, 5, 6, 7, 8, 10};
+        keep = RouteGeometry.simplify(xs, ys, 0.5);
+        assertTrue(keep[2]);
+        assertFalse(keep[1] || keep[3] || keep[4] || keep[5] || keep[6]);
+
+        // the far end of a route doubling back on itself is kept
+        xs = new double[] {0, 10, 2};
+        ys = new double[] {0, 0, 0};
+        assertTrue(RouteGeometry.simplify(xs, ys, 0.5)[1]);
+    }
+
+    @Test
+    public void testPathClipsToRaster() {
+        // a route running east along a parallel, 1000 pixels long at 0.001 degrees per pixel
+        int n = 1001;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int i = 0; i < n; i++) {
+            lons[i] = -122 + i * 0.001;
+            lats[i] = 37 + (i % 2) * 0.01; // zigzag of 10 pixels, kept by simplification
+        }
+        RouteGeometry route = new RouteGeometry(lons, lats);
+
+        // a raster 100 pixels wide over the middle of the route sees about 100 segments
+        Path2D path = route.path(1, -121.6, 37.05, 0.001, 0.001, 100, 100, 5);
+        int segments = countSegments(path);
+        assertTrue(segments >= 100 && segments <= 112);
+        Rectangle2D bounds = path.getBounds2D();
+        assertTrue(bounds.getMinX() >= -6 && bounds.getMaxX() <= 106);
+        assertEquals(40, bounds.getMinY(), 1e-6);
+        assertEquals(50, bounds.getMaxY(), 1e-6);
+
+        // none south of it
+        assertEquals(0, countSegments(route.path(1, -121.6, 36.5, 0.001, 0.001, 100, 100, 5)));
+    }
+
+    private static int countSegments(Path2D path) {
+        int segments = 0;
+        double[] coords = new double[6];
+        for (PathIterator it = path.getPathIterator(null); !it.isDone(); it.next()) {
+            if (it.currentSegment(coords) == PathIterator.SEG_LINETO) {
+                segments++;
+            }
+        }
+        return segments;
+    }
+}
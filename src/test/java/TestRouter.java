@@ -1,6 +1,7 @@
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -10,11 +11,13 @@ import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
 
 public class TestRouter {
     private static final String PARAMS_FILE = "C:\\Users\\Ling\\61b\\proj3\\path_params.txt";
     private static final String RESULTS_FILE = "C:\\Users\\Ling\\61b\\proj3\\path_results.txt";
     private static final int NUM_TESTS = 8;
+    private static final double LENGTH_DELTA = 1e-9;
     private static final String OSM_DB_PATH = "C:\\Users\\Ling\\61b\\library-sp18\\data\\berkeley-2018.osm.xml";
     private static GraphDB graph;
     private static boolean initialized = false;
@@ -44,6 +47,52 @@ public class TestRouter {
         }
     }
 
+    @Test
+    public void testShortestPathBidirectional() throws Exception {
+        checkPathLengths(Router.Algorithm.BIDIRECTIONAL_ASTAR);
+    }
+
+    @Test
+    public void testShortestPathAlt() throws Exception {
+        checkPathLengths(Router.Algorithm.ALT);
+    }
+
+    @Test
+    public void testShortestPathContractionHierarchy() throws Exception {
+        // the hierarchy is saved next to the map, so only build it for the real one
+        assumeTrue(new File(OSM_DB_PATH).exists());
+        checkPathLengths(Router.Algorithm.CONTRACTION_HIERARCHY);
+    }
+
+    /**
+     * The other algorithms may pick a different path when two are equally short, so compare
+     * path lengths rather than vertex lists.
+     */
+    private void checkPathLengths(Router.Algorithm algorithm) throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        List<List<Long>> expectedResults = resultsFromFile();
+
+        for (int i = 0; i < NUM_TESTS; i++) {
+            Map<String, Double> params = testParams.get(i);
+            List<Long> actual = Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"), algorithm);
+            List<Long> expected = expectedResults.get(i);
+            assertEquals(algorithm + " path " + i + " has a different length",
+                    pathLength(expected), pathLength(actual), LENGTH_DELTA);
+            assertEquals(expected.get(0), actual.get(0));
+            assertEquals(expected.get(expected.size() - 1), actual.get(actual.size() - 1));
+        }
+    }
+
+    private static double pathLength(List<Long> path) {
+        double length = 0;
+        for (int i = 1; i < path.size(); i++) {
+            length += graph.distance(path.get(i - 1), path.get(i));
+        }
+        return length;
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
@@ -0,0 +1,53 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the responses MapServer caches for short prefix searches keep the ranking by
+ * distance the page asks for with its viewport.
+ */
+public class TestSearchCache {
+    @Test
+    public void testBiasedShortPrefixRanksNearbyFirst() throws Exception {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<osm version=\"0.6\">\n");
+        // many Starbucks far to the east, one Star Market in the west
+        for (int i = 1; i <= 10; i++) {
+            xml.append(node(i, -122.20 + i * 0.001, 37.87, "Starbucks"));
+        }
+        xml.append(node(11, -122.30, 37.87, "Star Market"));
+        xml.append("  <way id=\"1\">\n    <nd ref=\"1\"/>\n    <nd ref=\"2\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n  </way>\n</osm>\n");
+        File dir = Files.createTempDirectory("search").toFile();
+        File map = new File(dir, "map.osm.xml");
+        Files.write(map.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            GraphDB g = new GraphDB(map.getPath());
+            MapServer.SearchBias west = new MapServer.SearchBias(-122.30, 37.87, 1).snapped();
+            for (String prefix : new String[] {"s", "st", "Sta"}) {
+                assertEquals("[\"Starbucks\",\"Star Market\"]", search(g, prefix, null));
+                assertEquals("[\"Star Market\",\"Starbucks\"]", search(g, prefix, west));
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static String search(GraphDB g, String term, MapServer.SearchBias near) {
+        MapServer.SearchKey key = new MapServer.SearchKey(1, false, term, 10, near);
+        return new String(MapServer.search(g, key), StandardCharsets.UTF_8);
+    }
+
+    private static String node(long id, double lon, double lat, String name) {
+        return String.format(Locale.ROOT, "  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">\n"
+                + "    <tag k=\"name\" v=\"%s\"/>\n  </node>\n", id, lat, lon, name);
+    }
+}
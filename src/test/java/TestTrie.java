@@ -0,0 +1,113 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks Trie against ranking every matching name by brute force, on random names drawn from
+ * a small alphabet so that they share many prefixes, keyed by their lower case so that some
+ * names share keys. Also checks how GraphDB normalizes names into keys.
+ */
+public class TestTrie {
+    @Test
+    public void testMatchesBruteForce() {
+        Random random = new Random(2718);
+        for (int round = 0; round < 20; round++) {
+            Trie trie = new Trie();
+            Map<String, Integer> counts = new HashMap<>();
+            int n = 1 + random.nextInt(300);
+            for (int i = 0; i < n; i++) {
+                String name = randomName(random);
+                trie.insert(key(name), name);
+                counts.merge(name, 1, Integer::sum);
+            }
+            trie.build();
+            assertEquals(counts.size(), trie.size());
+
+            List<String> prefixes = new ArrayList<>();
+            prefixes.add("");
+            for (String name : counts.keySet()) {
+                for (int i = 1; i <= name.length(); i++) {
+                    prefixes.add(key(name.substring(0, i)));
+                }
+                prefixes.add(key(name) + "a");
+                List<String> sameKey = new ArrayList<>();
+                for (String other : counts.keySet()) {
+                    if (key(other).equals(key(name))) {
+                        sameKey.add(other);
+                    }
+                }
+                Collections.sort(sameKey);
+                assertEquals(sameKey, trie.findByKey(key(name)));
+            }
+            prefixes.add("zz");
+            for (String prefix : prefixes) {
+                List<String> expected = bruteForce(counts, prefix);
+                for (int limit : new int[] {0, 1, 3, Trie.TOP_K, Trie.TOP_K + 5,
+                        Integer.MAX_VALUE}) {
+                    List<String> actual = trie.findByPrefix(prefix, limit);
+                    assertEquals(prefix + " " + limit,
+                            expected.subList(0, Math.min(limit, expected.size())), actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        Trie trie = new Trie();
+        trie.build();
+        assertTrue(trie.findByPrefix("").isEmpty());
+        assertTrue(trie.findByPrefix("a", 5).isEmpty());
+        assertTrue(trie.findByKey("").isEmpty());
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("cafe strada", GraphDB.normalize("  Caf\u00e9\tStrada "));
+        assertEquals("7eleven", GraphDB.normalize("7-Eleven"));
+        assertEquals("route 24", GraphDB.normalize("Route 24"));
+        assertEquals("peets coffee", GraphDB.normalize("PEET'S Coffee"));
+        assertEquals("strasse", GraphDB.normalize("Stra\u00dfe"));
+        assertEquals("fiesta", GraphDB.normalize("\ufb01esta")); // fi ligature
+        assertEquals("\u6771\u4eac", GraphDB.normalize("\u6771\u4eac"));
+        assertEquals("", GraphDB.normalize("-!?"));
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder s = new StringBuilder();
+        int length = 1 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            s.append("aAb c".charAt(random.nextInt(5)));
+        }
+        return s.toString();
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase();
+    }
+
+    private static List<String> bruteForce(Map<String, Integer> counts, String prefix) {
+        List<String> matches = new ArrayList<>();
+        for (String name : counts.keySet()) {
+            if (key(name).startsWith(prefix)) {
+                matches.add(name);
+            }
+        }
+        Collections.sort(matches, (a, b) -> {
+            if (!counts.get(a).equals(counts.get(b))) {
+                return Integer.compare(counts.get(b), counts.get(a));
+            }
+            int c = key(a).compareTo(key(b));
+            return c != 0 ? c : a.compareTo(b);
+        });
+        return matches;
+    }
+}